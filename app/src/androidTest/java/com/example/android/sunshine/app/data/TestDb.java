@@ -18,8 +18,12 @@ package com.example.android.sunshine.app.data;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
 import android.test.AndroidTestCase;
 
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
 import java.util.HashSet;
 
 public class TestDb extends AndroidTestCase {
@@ -234,4 +238,165 @@ public class TestDb extends AndroidTestCase {
         db.close();
         return locationRowId;
     }
+
+    /*
+        Checks that the queries the app makes for a location's weather are answered from indexes.
+        The SQL is the provider's own, for both the location setting and the location id forms of
+        each selection, and for each of the projections the app uses.  SQLite reports a full pass
+        over a table as SCAN, and sorting rows the index didn't return in date order as a temp
+        B-tree.
+     */
+    public void testQueryPlans() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+
+        String[][] projections = {
+                TestQueryBenchmark.LIST_COLUMNS,
+                TestQueryBenchmark.DETAIL_COLUMNS,
+                TestQueryBenchmark.WIDGET_COLUMNS,
+                TestQueryBenchmark.MUZEI_COLUMNS
+        };
+        String[] args = {"99705", "1419033600000"};
+        String[] idArgs = {"1", "1419033600000"};
+        for (String[] projection : projections) {
+            assertUsesIndexes(db, WeatherProvider.buildQuery(WeatherProvider.WEATHER_WITH_LOCATION,
+                    projection, WeatherProvider.sLocationSettingWithStartDateSelection,
+                    TestQueryBenchmark.SORT_ORDER), args, false);
+            assertUsesIndexes(db, WeatherProvider.buildQuery(
+                    WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE, projection,
+                    WeatherProvider.sLocationSettingAndDaySelection, null), args, false);
+            assertUsesIndexes(db, WeatherProvider.buildQuery(WeatherProvider.WEATHER_WITH_LOCATION,
+                    projection, WeatherProvider.sLocationIdWithStartDateSelection,
+                    TestQueryBenchmark.SORT_ORDER), idArgs, true);
+            assertUsesIndexes(db, WeatherProvider.buildQuery(
+                    WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE, projection,
+                    WeatherProvider.sLocationIdAndDaySelection, null), idArgs, true);
+        }
+        db.close();
+    }
+
+    private void assertUsesIndexes(SQLiteDatabase db, String sql, String[] args,
+                                   boolean checkSort) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = c.getColumnIndex("detail");
+        assertTrue("Error: No query plan for " + sql, c.moveToFirst());
+        do {
+            String detail = c.getString(detailIndex);
+            assertFalse("Error: Table scan (" + detail + ") in " + sql,
+                    detail.startsWith("SCAN"));
+            if (checkSort) {
+                assertFalse("Error: Rows sorted after the query (" + detail + ") in " + sql,
+                        detail.contains("TEMP B-TREE"));
+            }
+        } while (c.moveToNext());
+        c.close();
+    }
+
+    /*
+        Takes a database with weather in it back to version 2, which had no weather_location_date
+        index, and checks that upgrading it adds the index without losing any rows.
+     */
+    public void testUpgradeKeepsData() {
+        long locationRowId = insertLocation();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, weatherValues) != -1);
+
+        db.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+        dbHelper.onUpgrade(db, 2, 3);
+
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND name=?",
+                new String[]{WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE});
+        assertTrue("Error: The upgrade didn't create the location and date index",
+                c.moveToFirst());
+        c.close();
+
+        c = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null, null);
+        assertEquals("Error: The upgrade lost the location", 1, c.getCount());
+        c.close();
+
+        c = db.query(WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+        assertTrue("Error: The upgrade lost the weather", c.moveToFirst());
+        TestUtilities.validateCurrentRecord("Error: The upgrade changed the weather",
+                c, weatherValues);
+        c.close();
+        dbHelper.close();
+    }
+
+    /*
+        Takes a database with weather in it back to version 3, whose weather table had no digest
+        column, and checks that upgrading it keeps the rows with a digest of 0, so that the next
+        merge rewrites each of them once and a merge after that writes nothing.
+     */
+    public void testUpgradeAddsDigest() {
+        long locationRowId = insertLocation();
+        ForecastBatch batch = TestForecastBatch.createForecastBatch(locationRowId, 5);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.execSQL("DROP TABLE " + WeatherEntry.TABLE_NAME);
+        db.execSQL("CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);");
+        dbHelper.onUpgrade(db, 2, 3);
+        ContentValues[] weatherValues = batch.toContentValues();
+        for (int i = 0; i < weatherValues.length; i++) {
+            weatherValues[i].remove(WeatherEntry.COLUMN_DIGEST);
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(batch.getDate(i)));
+            assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, weatherValues[i]) != -1);
+        }
+
+        dbHelper.onUpgrade(db, 3, 4);
+
+        Cursor c = db.query(WeatherEntry.TABLE_NAME, null, null, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: The upgrade lost weather", weatherValues.length, c.getCount());
+        int digestIndex = c.getColumnIndex(WeatherEntry.COLUMN_DIGEST);
+        assertTrue("Error: The upgrade didn't add the digest column", digestIndex != -1);
+        for (int i = 0; c.moveToNext(); i++) {
+            TestUtilities.validateCurrentRecord("Error: The upgrade changed the weather",
+                    c, weatherValues[i]);
+            assertEquals("Error: An upgraded row already has a digest", 0, c.getLong(digestIndex));
+        }
+        c.close();
+        dbHelper.close();
+
+        // A provider of its own, opening the upgraded file afresh
+        WeatherProvider provider = new WeatherProvider();
+        provider.attachInfo(mContext, null);
+        ForecastBatch[] batches = {batch};
+        assertEquals("Error: The first merge after the upgrade should rewrite every row",
+                weatherValues.length,
+                provider.mergeForecasts(batches, -1).getInt(WeatherContract.EXTRA_ROW_COUNT));
+        assertEquals("Error: The rewritten rows didn't keep their digests",
+                0, provider.mergeForecasts(batches, -1).getInt(WeatherContract.EXTRA_ROW_COUNT));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            provider.shutdown();
+        }
+
+        db = dbHelper.getReadableDatabase();
+        c = db.query(WeatherEntry.TABLE_NAME, new String[]{WeatherEntry.COLUMN_DIGEST}, null,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        for (int i = 0; c.moveToNext(); i++) {
+            assertEquals("Error: The merge didn't store the day's digest",
+                    batch.getDigest(i), c.getLong(0));
+        }
+        c.close();
+        dbHelper.close();
+    }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Tests the ForecastBatch merge of the WeatherProvider against the ContentValues based
+    bulkInsert it replaces, and checks that merging only writes the days that changed and that
+    readers only ever see a merge as a whole.
+ */
+public class TestForecastBatch extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastBatch.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 10;
+    private static final int WINDOW_ITERATIONS = 30;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testBatchInsertMatchesBulkInsert() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ForecastBatch batch = createForecastBatch(locationRowId, 14);
+
+        Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_FORECAST, null, ForecastBatch.toBundle(batch));
+        assertEquals("Error: Wrong number of rows inserted from the batch",
+                14, result.getInt(WeatherContract.EXTRA_ROW_COUNT));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals("Error: Wrong number of rows in the weather table", 14, cursor.getCount());
+
+        // The rows must be exactly what the ContentValues path would have written
+        ContentValues[] expected = batch.toContentValues();
+        cursor.moveToFirst();
+        for (int i = 0; i < expected.length; i++, cursor.moveToNext()) {
+            expected[i].put(WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(batch.getDate(i)));
+            TestUtilities.validateCurrentRecord("Error validating ForecastBatch row " + i,
+                    cursor, expected[i]);
+        }
+        cursor.close();
+    }
+
+    public void testMergeWritesOnlyChanges() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ForecastBatch batch = createForecastBatch(locationRowId, 14);
+        mergeForecast(batch);
+        long[] rowIds = queryWeatherRowIds();
+
+        Bundle result = mergeForecast(batch);
+        assertEquals("Error: Merging an unchanged forecast wrote rows",
+                0, result.getInt(WeatherContract.EXTRA_ROW_COUNT));
+
+        // Warmer on the fourth day, the rest the same
+        ForecastBatch changed = new ForecastBatch(14);
+        changed.setLocationId(locationRowId);
+        for (int i = 0; i < batch.size(); i++) {
+            changed.add(batch.getDate(i), batch.getWeatherId(i), batch.getDescription(i),
+                    batch.getMinTemp(i), batch.getMaxTemp(i) + (i == 3 ? 1 : 0),
+                    batch.getHumidity(i), batch.getPressure(i), batch.getWindSpeed(i),
+                    batch.getDegrees(i));
+        }
+
+        TestUtilities.TestContentObserver dayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        batch.getDate(3)), false, dayObserver);
+
+        result = mergeForecast(changed);
+        assertEquals("Error: Merge should write just the changed day",
+                1, result.getInt(WeatherContract.EXTRA_ROW_COUNT));
+        long[] changedDates = result.getLongArray(WeatherContract.EXTRA_CHANGED_DATES);
+        assertEquals("Error: Wrong number of changed dates", 1, changedDates.length);
+        assertEquals("Error: Wrong changed date",
+                WeatherContract.normalizeDate(batch.getDate(3)), changedDates[0]);
+        assertEquals("Error: Wrong changed location", locationRowId,
+                result.getLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS)[0]);
+
+        dayObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(dayObserver);
+
+        // Rows are updated in place rather than replaced
+        long[] mergedRowIds = queryWeatherRowIds();
+        assertEquals("Error: Merge changed the number of rows", rowIds.length, mergedRowIds.length);
+        for (int i = 0; i < rowIds.length; i++) {
+            assertEquals("Error: Merge replaced row " + i, rowIds[i], mergedRowIds[i]);
+        }
+    }
+
+    /*
+        Moves a fourteen day forecast forward a day at a time, merging the new window and pruning
+        the day that dropped out of it in one call, while another thread keeps reading the table.
+        Every day of a window has the same weather id, so the reader can tell a whole window from
+        one that is half written or not yet pruned.  Each merge must also be announced just once.
+     */
+    public void testMergeAndPruneIsAtomic() throws InterruptedException {
+        final long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mergeForecast(createWindow(locationRowId, 0), -1);
+
+        final AtomicInteger notifications = new AtomicInteger();
+        HandlerThread observerThread = new HandlerThread("ContentObserverThread");
+        observerThread.start();
+        ContentObserver observer = new ContentObserver(new Handler(observerThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                notifications.incrementAndGet();
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onChange(selfChange);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+
+        final String[] partialState = new String[1];
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get() && partialState[0] == null) {
+                    Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                            new String[]{WeatherEntry.COLUMN_WEATHER_ID}, null, null, null);
+                    int weatherId = -1;
+                    while (cursor.moveToNext()) {
+                        if (weatherId != -1 && cursor.getInt(0) != weatherId) {
+                            partialState[0] = "weather ids " + weatherId + " and " +
+                                    cursor.getInt(0);
+                        }
+                        weatherId = cursor.getInt(0);
+                    }
+                    if (cursor.getCount() != 14) {
+                        partialState[0] = cursor.getCount() + " rows";
+                    }
+                    cursor.close();
+                }
+            }
+        };
+        reader.start();
+
+        for (int window = 1; window <= WINDOW_ITERATIONS; window++) {
+            Bundle result = mergeForecast(createWindow(locationRowId, window),
+                    WeatherContract.normalizeDate(
+                            TestUtilities.TEST_DATE + (window - 1) * DAY_IN_MILLIS));
+            assertEquals("Error: Moving the window should rewrite every day",
+                    14, result.getInt(WeatherContract.EXTRA_ROW_COUNT));
+            assertEquals("Error: Moving the window should prune one day",
+                    1, result.getInt(WeatherContract.EXTRA_DELETED_COUNT));
+        }
+        done.set(true);
+        reader.join();
+        assertNull("Error: A reader saw a partly merged forecast: " + partialState[0],
+                partialState[0]);
+
+        // The notifications are delivered asynchronously, so give the last one time to arrive
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return notifications.get() >= WINDOW_ITERATIONS;
+            }
+        }.run();
+        Thread.sleep(500);
+        assertEquals("Error: Each merge should send exactly one notification",
+                WINDOW_ITERATIONS, notifications.get());
+        mContext.getContentResolver().unregisterContentObserver(observer);
+        observerThread.quit();
+    }
+
+    // Fourteen days from the given day on, all with the same weather id
+    private static ForecastBatch createWindow(long locationRowId, int firstDay) {
+        ForecastBatch batch = new ForecastBatch(14);
+        batch.setLocationId(locationRowId);
+        for (int i = firstDay; i < firstDay + 14; i++) {
+            batch.add(TestUtilities.TEST_DATE + i * DAY_IN_MILLIS, 321 + firstDay, "Asteroids",
+                    65 - i, 75 + i, 1.2, 1.3 + 0.01 * i, 5.5 + 0.2 * i, 1.1);
+        }
+        return batch;
+    }
+
+    private Bundle mergeForecast(ForecastBatch batch, long pruneDate) {
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_FORECAST,
+                pruneDate >= 0 ? Long.toString(pruneDate) : null, ForecastBatch.toBundle(batch));
+    }
+
+    private Bundle mergeForecast(ForecastBatch batch) {
+        return mergeForecast(batch, -1);
+    }
+
+    private long[] queryWeatherRowIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] rowIds = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            rowIds[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return rowIds;
+    }
+
+    public void testBatchGrows() {
+        ForecastBatch batch = createForecastBatch(1, 100);
+        assertEquals("Error: Batch didn't keep every row", 100, batch.size());
+        assertEquals("Error: Batch lost a row while growing", 99 + 321, batch.getWeatherId(99));
+        assertEquals("Error: Batch didn't survive a Bundle round trip", 100,
+                ForecastBatch.fromBundle(ForecastBatch.toBundle(batch))[0].size());
+    }
+
+    /*
+        Not a pass/fail test: logs how long a sync transaction takes through each write path for
+        a normal forecast and for much larger ones.
+     */
+    public void testBenchmark() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        for (int rows : new int[]{14, 100, 1000}) {
+            ForecastBatch batch = createForecastBatch(locationRowId, rows);
+
+            long contentValuesNanos = 0;
+            long batchNanos = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+                long start = System.nanoTime();
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                        batch.toContentValues());
+                contentValuesNanos += System.nanoTime() - start;
+
+                mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+                start = System.nanoTime();
+                mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                        WeatherContract.METHOD_MERGE_FORECAST, null,
+                        ForecastBatch.toBundle(batch));
+                batchNanos += System.nanoTime() - start;
+            }
+
+            Log.i(LOG_TAG, rows + " rows: ContentValues " +
+                    contentValuesNanos / BENCHMARK_ITERATIONS / 1000 + "us, ForecastBatch " +
+                    batchNanos / BENCHMARK_ITERATIONS / 1000 + "us");
+        }
+    }
+
+    static ForecastBatch createForecastBatch(long locationRowId, int rows) {
+        final long millisecondsInADay = 1000 * 60 * 60 * 24;
+        ForecastBatch batch = new ForecastBatch(14);
+        batch.setLocationId(locationRowId);
+        for (int i = 0; i < rows; i++) {
+            batch.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 321 + i, "Asteroids",
+                    65 - i, 75 + i, 1.2, 1.3 + 0.01 * i, 5.5 + 0.2 * i, 1.1);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+
+public class TestForecastSnapshot extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        new File(mContext.getFilesDir(), ForecastSnapshot.FILE_NAME).delete();
+        ForecastSnapshot.forget();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ForecastSnapshot.forget();
+        super.tearDown();
+    }
+
+    public void testPublishedSnapshotSurvivesRestart() {
+        ForecastBatch batch = TestForecastBatch.createForecastBatch(1, 14);
+        ForecastSnapshot published = ForecastSnapshot.fromBatch(mContext,
+                TestUtilities.TEST_LOCATION, batch);
+        ForecastSnapshot.publish(mContext, published);
+        assertSame("Error: The published snapshot isn't the current one",
+                published, ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION));
+
+        // As a new process would, with no rows in the database to fall back on
+        ForecastSnapshot.forget();
+        ForecastSnapshot read = ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: The snapshot wasn't read back from its file", read);
+        assertEquals("Error: Wrong version read back", published.getVersion(), read.getVersion());
+        assertEquals("Error: Wrong location read back", 1, read.getLocationId());
+        assertEquals("Error: Wrong number of days read back", 14, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            assertEquals(WeatherContract.normalizeDate(batch.getDate(i)), read.getDate(i));
+            assertEquals(batch.getWeatherId(i), read.getWeatherId(i));
+            assertEquals(batch.getDescription(i), read.getDescription(i));
+            assertEquals(batch.getMaxTemp(i), read.getMaxTemp(i), 0);
+            assertEquals(batch.getMinTemp(i), read.getMinTemp(i), 0);
+        }
+
+        ForecastSnapshot next = ForecastSnapshot.fromBatch(mContext,
+                TestUtilities.TEST_LOCATION, batch);
+        assertEquals("Error: Versions should go up by one",
+                published.getVersion() + 1, next.getVersion());
+    }
+
+    public void testOtherLocationReadFromProvider() {
+        ForecastSnapshot.publish(mContext, ForecastSnapshot.fromBatch(mContext, "elsewhere",
+                TestForecastBatch.createForecastBatch(1, 14)));
+
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ForecastBatch batch = TestForecastBatch.createForecastBatch(locationRowId, 3);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                batch.toContentValues());
+
+        ForecastSnapshot snapshot = ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: No snapshot built from the provider", snapshot);
+        assertEquals(TestUtilities.TEST_LOCATION, snapshot.getLocationSetting());
+        assertEquals(locationRowId, snapshot.getLocationId());
+        assertEquals("Error: Wrong number of days from the provider", 3, snapshot.size());
+        assertEquals(1, snapshot.indexOfDay(batch.getDate(1)));
+        assertEquals(batch.getMaxTemp(1), snapshot.getMaxTemp(1), 0);
+    }
+
+    public void testDigestsFindChangedDays() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ForecastBatch batch = TestForecastBatch.createForecastBatch(locationRowId, 3);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                batch.toContentValues());
+        ForecastSnapshot stored = ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION);
+        ForecastSnapshot same = ForecastSnapshot.fromBatch(mContext,
+                TestUtilities.TEST_LOCATION, batch);
+        assertTrue("Error: The stored digests don't match the batch's",
+                same.hasSameDays(stored, TestUtilities.TEST_DATE, Integer.MAX_VALUE));
+
+        // The same forecast but for the last day's low
+        final long millisecondsInADay = 1000 * 60 * 60 * 24;
+        ForecastBatch changed = TestForecastBatch.createForecastBatch(locationRowId, 2);
+        changed.add(TestUtilities.TEST_DATE + 2 * millisecondsInADay, 323, "Asteroids",
+                60, 77, 1.2, 1.32, 5.9, 1.1);
+        ForecastSnapshot snapshot = ForecastSnapshot.fromBatch(mContext,
+                TestUtilities.TEST_LOCATION, changed);
+        assertTrue("Error: The first two days should be the same",
+                snapshot.hasSameDays(stored, TestUtilities.TEST_DATE, 2));
+        assertFalse("Error: The last day's change wasn't found",
+                snapshot.hasSameDays(stored, TestUtilities.TEST_DATE, Integer.MAX_VALUE));
+        assertFalse("Error: A day missing from one snapshot wasn't found",
+                snapshot.hasSameDays(ForecastSnapshot.fromBatch(mContext,
+                        TestUtilities.TEST_LOCATION, TestForecastBatch.createForecastBatch(
+                                locationRowId, 2)), TestUtilities.TEST_DATE, Integer.MAX_VALUE));
+        assertFalse("Error: Another location's forecast can't be the same",
+                same.hasSameDays(ForecastSnapshot.fromBatch(mContext, "elsewhere", batch),
+                        TestUtilities.TEST_DATE, 1));
+    }
+}
@@ -24,6 +24,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
@@ -512,4 +513,55 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        The location upsert must hand back the same row for a known location setting, and must
+        not keep answering from its id cache once that row has been deleted.
+     */
+    public void testUpsertLocation() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = upsertNorthPoleLocation();
+        assertTrue("Error: Upsert didn't add the location", locationRowId > 0);
+        assertEquals("Error: Upsert added a known location again",
+                locationRowId, upsertNorthPoleLocation());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        TestUtilities.validateCursor("testUpsertLocation. Error validating LocationEntry.",
+                cursor, TestUtilities.createNorthPoleLocationValues());
+        cursor.close();
+
+        // Weather queries by location setting must still find the location's rows
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        TestUtilities.validateCursor("testUpsertLocation. Error validating weather query.",
+                cursor, weatherValues);
+        cursor.close();
+
+        deleteAllRecordsFromProvider();
+        long newLocationRowId = upsertNorthPoleLocation();
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                LocationEntry._ID + " = " + newLocationRowId, null, null);
+        assertEquals("Error: Upsert returned the id of a deleted location", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    private long upsertNorthPoleLocation() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        Bundle extras = new Bundle();
+        extras.putString(LocationEntry.COLUMN_CITY_NAME,
+                values.getAsString(LocationEntry.COLUMN_CITY_NAME));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT,
+                values.getAsDouble(LocationEntry.COLUMN_COORD_LAT));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG,
+                values.getAsDouble(LocationEntry.COLUMN_COORD_LONG));
+        Bundle result = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_LOCATION, TestUtilities.TEST_LOCATION, extras);
+        return result.getLong(WeatherContract.EXTRA_LOCATION_ID);
+    }
 }
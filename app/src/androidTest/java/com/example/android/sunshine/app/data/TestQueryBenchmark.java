@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Times the queries the app makes most often, for the forecast list, the detail view, the
+    widgets and Muzei, through the WeatherProvider and through a SQLiteQueryBuilder built afresh
+    for every query, the way the provider used to run them.  Only the timings are logged; the
+    test fails only if the two paths disagree on the results.
+ */
+public class TestQueryBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryBenchmark.class.getSimpleName();
+
+    private static final int ITERATIONS = 200;
+
+    // The projections below are copied from the classes named, which keep theirs private.
+    // TestDb checks the query plans for the same projections.
+    static final String[] LIST_COLUMNS = {    // ForecastFragment
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    static final String[] DETAIL_COLUMNS = {    // DetailFragment
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    static final String[] WIDGET_COLUMNS = {    // TodayWidgetIntentService
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    static final String[] MUZEI_COLUMNS = {    // WeatherMuzeiSource
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherProvider mProvider;
+    private ContentProviderClient mClient;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestForecastBatch.createForecastBatch(locationRowId, 14).toContentValues());
+
+        mClient = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) mClient.getLocalContentProvider();
+        mDb = new WeatherDbHelper(mContext).getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mClient.release();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testBenchmark() {
+        Uri listUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+
+        benchmark("list", listUri, LIST_COLUMNS, SORT_ORDER);
+        benchmark("detail", dayUri, DETAIL_COLUMNS, null);
+        benchmark("widget", listUri, WIDGET_COLUMNS, SORT_ORDER);
+        benchmark("muzei", listUri, MUZEI_COLUMNS, SORT_ORDER);
+    }
+
+    private void benchmark(String name, Uri uri, String[] projection, String sortOrder) {
+        // Warm up both paths, and make sure they agree
+        assertEquals("Error: Provider and query builder disagree for the " + name + " query",
+                runUncached(uri, projection, sortOrder), runProvider(uri, projection, sortOrder));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            runUncached(uri, projection, sortOrder);
+        }
+        long uncachedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            runProvider(uri, projection, sortOrder);
+        }
+        long providerNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, name + " query: rebuilt each time " + uncachedNanos / ITERATIONS / 1000
+                + "us, provider " + providerNanos / ITERATIONS / 1000 + "us");
+    }
+
+    private int runProvider(Uri uri, String[] projection, String sortOrder) {
+        Cursor cursor = mProvider.query(uri, projection, null, null, sortOrder);
+        // Queries don't run until the cursor is first filled
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private int runUncached(Uri uri, String[] projection, String sortOrder) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME +
+                " ON " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY +
+                " = " + LocationEntry.TABLE_NAME + "." + LocationEntry._ID);
+
+        String locationSetting = WeatherEntry.getLocationSettingFromUri(uri);
+        String selection;
+        String[] selectionArgs;
+        if (uri.getPathSegments().size() > 2) {
+            selection = LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_SETTING
+                    + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ? ";
+            selectionArgs = new String[]{locationSetting,
+                    Long.toString(WeatherEntry.getDateFromUri(uri))};
+        } else {
+            selection = LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_SETTING
+                    + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ? ";
+            selectionArgs = new String[]{locationSetting,
+                    Long.toString(WeatherEntry.getStartDateFromUri(uri))};
+        }
+
+        Cursor cursor = builder.query(mDb, projection, selection, selectionArgs, null, null,
+                sortOrder);
+        cursor.setNotificationUri(mContext.getContentResolver(), uri);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
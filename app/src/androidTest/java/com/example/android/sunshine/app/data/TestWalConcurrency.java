@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/*
+    Runs the sync adapter's write, a merge that rewrites every row, over and over while several
+    threads query the forecast the way the list, the widgets and Muzei do.  Logs the readers'
+    latency percentiles and the size the write-ahead log reached; fails only if the database
+    isn't in WAL mode or the readers couldn't get a query in while the writer ran.
+ */
+public class TestWalConcurrency extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWalConcurrency.class.getSimpleName();
+
+    private static final int WRITES = 50;
+    private static final int ROWS = 200;
+    private static final int READERS = 3;
+    private static final int MAX_READS = 5000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testWalMode() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: weather.db isn't using a write-ahead log",
+                "wal", cursor.getString(0).toLowerCase());
+        cursor.close();
+        dbHelper.close();
+    }
+
+    public void testReadersDuringSync() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        final ForecastBatch[] batches = {
+                createForecastBatch(locationRowId, 0),
+                createForecastBatch(locationRowId, 1)
+        };
+        final Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        mergeForecast(batches[1]);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[][] latencies = new long[READERS][MAX_READS];
+        final int[] readCounts = new int[READERS];
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    int reads = 0;
+                    while (done.getCount() > 0 && reads < MAX_READS) {
+                        long start = System.nanoTime();
+                        Cursor cursor = mContext.getContentResolver().query(uri,
+                                TestQueryBenchmark.LIST_COLUMNS, null, null,
+                                TestQueryBenchmark.SORT_ORDER);
+                        if (cursor != null) {
+                            cursor.getCount();
+                            cursor.close();
+                        }
+                        latencies[reader][reads++] = System.nanoTime() - start;
+                    }
+                    readCounts[reader] = reads;
+                }
+            };
+            readers[r].start();
+        }
+
+        long writeNanos = 0;
+        for (int i = 0; i < WRITES; i++) {
+            long start = System.nanoTime();
+            assertEquals("Error: The merge didn't rewrite every row", ROWS,
+                    mergeForecast(batches[i % 2]));
+            writeNanos += System.nanoTime() - start;
+        }
+        done.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        int total = 0;
+        for (int count : readCounts) {
+            total += count;
+        }
+        assertTrue("Error: No reader got a query in while the sync ran", total > 0);
+        long[] all = new long[total];
+        int offset = 0;
+        for (int r = 0; r < READERS; r++) {
+            System.arraycopy(latencies[r], 0, all, offset, readCounts[r]);
+            offset += readCounts[r];
+        }
+        Arrays.sort(all);
+
+        long walBytes = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME + "-wal").length();
+        Log.i(LOG_TAG, WRITES + " merges of " + ROWS + " rows, " +
+                writeNanos / WRITES / 1000 + "us each; " + total + " reads, p50 " +
+                percentile(all, 50) + "us, p95 " + percentile(all, 95) + "us, p99 " +
+                percentile(all, 99) + "us, max " + all[total - 1] / 1000 + "us; WAL " +
+                walBytes + " bytes");
+    }
+
+    private int mergeForecast(ForecastBatch batch) {
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_FORECAST, null, ForecastBatch.toBundle(batch))
+                .getInt(WeatherContract.EXTRA_ROW_COUNT);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[(sorted.length - 1) * percent / 100] / 1000;
+    }
+
+    // Two versions of the forecast that differ in every row, so merging one over the other
+    // rewrites all of it, as a sync after a big change in the weather would
+    private static ForecastBatch createForecastBatch(long locationRowId, int version) {
+        final long millisecondsInADay = 1000 * 60 * 60 * 24;
+        ForecastBatch batch = new ForecastBatch(ROWS);
+        batch.setLocationId(locationRowId);
+        for (int i = 0; i < ROWS; i++) {
+            batch.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 321 + i, "Asteroids",
+                    65 - i, 75 + i, 1.2 + version, 1.3 + 0.01 * i, 5.5 + 0.2 * i, 1.1);
+        }
+        return batch;
+    }
+}
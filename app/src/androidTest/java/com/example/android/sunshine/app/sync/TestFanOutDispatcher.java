@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Dispatches a burst of changes and checks that each consumer runs once, with the changes
+    merged, that consumers run only for the changes they registered for, that a consumer
+    that blocks doesn't hold up the others, and that the device is kept awake until they've
+    all run.
+ */
+public class TestFanOutDispatcher extends AndroidTestCase {
+
+    private static final long WINDOW_MILLIS = 200;
+
+    private static final int CHANGE_A = 1;
+    private static final int CHANGE_B = 2;
+    private static final int CHANGE_C = 4;
+
+    private static class RecordingConsumer implements FanOutDispatcher.Consumer {
+        final AtomicInteger mRuns = new AtomicInteger();
+        volatile int mChanges;
+
+        @Override
+        public void onChanged(int changes) {
+            mChanges = changes;
+            mRuns.incrementAndGet();
+        }
+    }
+
+    public void testBurstCoalesced() throws InterruptedException {
+        FanOutDispatcher fanOut = new FanOutDispatcher(mContext, WINDOW_MILLIS, 2);
+        final RecordingConsumer a = new RecordingConsumer();
+        final RecordingConsumer c = new RecordingConsumer();
+        fanOut.register("a", 1, CHANGE_A | CHANGE_B, a);
+        fanOut.register("c", 0, CHANGE_C, c);
+
+        long start = System.nanoTime();
+        fanOut.dispatch(CHANGE_A);
+        fanOut.dispatch(CHANGE_B);
+        fanOut.dispatch(CHANGE_A);
+        assertTrue("Error: dispatch() should return straight away",
+                System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS));
+
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return a.mRuns.get() > 0;
+            }
+        }.run();
+        Thread.sleep(2 * WINDOW_MILLIS);
+        assertEquals("Error: The burst should run the consumer once", 1, a.mRuns.get());
+        assertEquals("Error: The burst's changes weren't merged",
+                CHANGE_A | CHANGE_B, a.mChanges);
+        assertEquals("Error: A consumer ran for changes it didn't register for",
+                0, c.mRuns.get());
+        assertEquals("Error: The run wasn't recorded", 1, fanOut.getLatency("a")[0]);
+    }
+
+    public void testSlowConsumerIsolated() throws InterruptedException {
+        final FanOutDispatcher fanOut = new FanOutDispatcher(mContext, WINDOW_MILLIS, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingConsumer fast = new RecordingConsumer();
+        fanOut.register("slow", 1, CHANGE_A, new FanOutDispatcher.Consumer() {
+            @Override
+            public void onChanged(int changes) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        fanOut.register("fast", 0, CHANGE_A, fast);
+
+        fanOut.dispatch(CHANGE_A);
+        assertTrue("Error: Not kept awake through the window", fanOut.isHoldingWakeLock());
+        try {
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return fast.mRuns.get() > 0;
+                }
+            }.run();
+            assertTrue("Error: Not kept awake while a consumer runs",
+                    fanOut.isHoldingWakeLock());
+        } finally {
+            release.countDown();
+        }
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return !fanOut.isHoldingWakeLock();
+            }
+        }.run();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Runs ForecastFetcher against a stub server on localhost to check that unchanged forecasts
+    are recognised, both by a 304 and by an identical body, and that compressed responses are
+    decoded.
+ */
+public class TestForecastFetcher extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+    private static final int TEST_JULIAN_DAY = 2457012;
+    private static final String TEST_ETAG = "\"forecast-1\"";
+    private static final String TEST_LAST_MODIFIED = "Sat, 20 Dec 2014 00:00:00 GMT";
+
+    private StubHttpServer mServer;
+    private ForecastCache mCache;
+    private ForecastFetcher mFetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getSharedPreferences(ForecastCache.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mCache = new ForecastCache(mContext);
+        mFetcher = new ForecastFetcher(mCache);
+        mServer = new StubHttpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testNotModified() throws Exception {
+        byte[] payload = ForecastResponses.createForecastPayload(14);
+        URL url = mServer.getUrl("/forecast");
+        mServer.enqueue(new StubHttpServer.Response(200, payload)
+                .header("ETag", TEST_ETAG)
+                .header("Last-Modified", TEST_LAST_MODIFIED));
+        mServer.enqueue(new StubHttpServer.Response(304, null));
+
+        ForecastResponses.RecordingCallback callback =
+                new ForecastResponses.RecordingCallback();
+        ForecastFetcher.Result result =
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback);
+        assertTrue("Error: First fetch should be a change", result.isChanged());
+        assertEquals("Error: First fetch should have been parsed", 14, callback.mDays.size());
+        mFetcher.commit(TEST_LOCATION, result);
+
+        callback = new ForecastResponses.RecordingCallback();
+        result = mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback);
+        assertFalse("Error: A 304 should not be a change", result.isChanged());
+        assertTrue("Error: A 304 should not be parsed", callback.mDays.isEmpty());
+
+        Map<String, String> conditional = mServer.getRequests().get(1);
+        assertEquals("Error: ETag not sent back", TEST_ETAG, conditional.get("if-none-match"));
+        assertEquals("Error: Last-Modified not sent back",
+                TEST_LAST_MODIFIED, conditional.get("if-modified-since"));
+
+        assertEquals("Error: Wrong hit count", 1, mCache.getHitCount());
+        assertEquals("Error: Wrong miss count", 1, mCache.getMissCount());
+    }
+
+    public void testIdenticalBody() throws Exception {
+        // A server that ignores validators still sends the same bytes back
+        byte[] payload = ForecastResponses.createForecastPayload(14);
+        URL url = mServer.getUrl("/forecast");
+        mServer.enqueue(new StubHttpServer.Response(200, payload));
+        mServer.enqueue(new StubHttpServer.Response(200, payload));
+        mServer.enqueue(new StubHttpServer.Response(200,
+                ForecastResponses.createForecastPayload(16)));
+
+        ForecastResponses.RecordingCallback callback =
+                new ForecastResponses.RecordingCallback();
+        mFetcher.commit(TEST_LOCATION,
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback));
+
+        ForecastFetcher.Result result =
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback);
+        assertFalse("Error: An identical body should not be a change", result.isChanged());
+
+        result = mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback);
+        assertTrue("Error: A different body should be a change", result.isChanged());
+
+        assertEquals("Error: Wrong hit count", 1, mCache.getHitCount());
+        assertEquals("Error: Wrong miss count", 2, mCache.getMissCount());
+    }
+
+    public void testValidatorsRefreshed() throws Exception {
+        // The same body under a new ETag is unchanged, but the new ETag is the one to send back
+        byte[] payload = ForecastResponses.createForecastPayload(14);
+        URL url = mServer.getUrl("/forecast");
+        mServer.enqueue(new StubHttpServer.Response(200, payload).header("ETag", TEST_ETAG));
+        mServer.enqueue(new StubHttpServer.Response(200, payload)
+                .header("ETag", TEST_ETAG + "-2"));
+        mServer.enqueue(new StubHttpServer.Response(304, null));
+
+        ForecastResponses.RecordingCallback callback =
+                new ForecastResponses.RecordingCallback();
+        mFetcher.commit(TEST_LOCATION,
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback));
+
+        ForecastFetcher.Result result =
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback);
+        assertFalse("Error: An identical body should not be a change", result.isChanged());
+        mFetcher.commit(TEST_LOCATION, result);
+
+        result = mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback);
+        assertFalse("Error: A 304 should not be a change", result.isChanged());
+        mFetcher.commit(TEST_LOCATION, result);
+
+        assertEquals("Error: The new ETag wasn't sent back", TEST_ETAG + "-2",
+                mServer.getRequests().get(2).get("if-none-match"));
+        assertEquals("Error: A 304 lost the stored ETag", TEST_ETAG + "-2",
+                mCache.get(TEST_LOCATION).mETag);
+    }
+
+    public void testCacheIgnored() throws Exception {
+        byte[] payload = ForecastResponses.createForecastPayload(14);
+        URL url = mServer.getUrl("/forecast");
+        for (int i = 0; i < 3; i++) {
+            mServer.enqueue(new StubHttpServer.Response(200, payload).header("ETag", TEST_ETAG));
+        }
+
+        ForecastResponses.RecordingCallback callback =
+                new ForecastResponses.RecordingCallback();
+        mFetcher.commit(TEST_LOCATION,
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback));
+
+        // The next day, stored dates have moved so the old entry can't be used
+        assertTrue("Error: An entry from another day should not be used",
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY + 1, true, callback)
+                        .isChanged());
+        // After a location change everything must be refreshed
+        assertTrue("Error: The cache should be ignored when asked",
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, false, callback)
+                        .isChanged());
+        assertNull("Error: Validators sent for an unusable entry",
+                mServer.getRequests().get(1).get("if-none-match"));
+        assertNull("Error: Validators sent for an unusable entry",
+                mServer.getRequests().get(2).get("if-none-match"));
+    }
+
+    public void testGzip() throws Exception {
+        byte[] payload = ForecastResponses.createForecastPayload(16);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(payload);
+        gzip.close();
+
+        URL url = mServer.getUrl("/forecast");
+        mServer.enqueue(new StubHttpServer.Response(200, compressed.toByteArray())
+                .header("Content-Encoding", "gzip"));
+        mServer.enqueue(new StubHttpServer.Response(200, payload));
+
+        ForecastResponses.RecordingCallback callback =
+                new ForecastResponses.RecordingCallback();
+        ForecastFetcher.Result result =
+                mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback);
+        assertEquals("Error: Compression not requested",
+                "gzip, deflate", mServer.getRequests().get(0).get("accept-encoding"));
+        assertEquals("Error: Compressed body not parsed", 16, callback.mDays.size());
+        assertEquals("Error: Wrong wire byte count",
+                compressed.size(), result.getWireBytes());
+        assertEquals("Error: Wrong body byte count", payload.length, result.getBodyBytes());
+        mFetcher.commit(TEST_LOCATION, result);
+
+        // The same forecast sent uncompressed is still the same forecast
+        result = mFetcher.fetch(url, TEST_LOCATION, TEST_JULIAN_DAY, true, callback);
+        assertFalse("Error: Hash should not depend on the encoding", result.isChanged());
+    }
+}
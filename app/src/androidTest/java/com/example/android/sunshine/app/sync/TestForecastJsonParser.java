@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.sync.ForecastResponses.RecordingCallback;
+
+import java.io.ByteArrayInputStream;
+
+import static com.example.android.sunshine.app.sync.ForecastResponses.createForecastPayload;
+import static com.example.android.sunshine.app.sync.ForecastResponses.parseWithJsonObject;
+
+/*
+    Compares how long ForecastJsonParser and the old JSONObject based parsing take on 14 and 16
+    day responses.  Timings only mean something on a device, so this is the parser's one
+    instrumented test; whether it parses correctly is checked on the JVM.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_WARMUP = 50;
+    private static final int BENCHMARK_ITERATIONS = 500;
+
+    /*
+        Logs the time per parse of each approach, and checks that the timed parses agree, so the
+        timings are of the same work.
+     */
+    public void testBenchmark() throws Exception {
+        for (int numDays : new int[]{14, 16}) {
+            byte[] payload = createForecastPayload(numDays);
+            ForecastJsonParser parser = new ForecastJsonParser();
+
+            for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+                parseWithJsonObject(payload);
+                parser.parse(new ByteArrayInputStream(payload), new RecordingCallback());
+            }
+
+            RecordingCallback expected = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                expected = parseWithJsonObject(payload);
+            }
+            long jsonObjectNanos = (System.nanoTime() - start) / BENCHMARK_ITERATIONS;
+
+            RecordingCallback streamed = null;
+            start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                streamed = new RecordingCallback();
+                parser.parse(new ByteArrayInputStream(payload), streamed);
+            }
+            long streamingNanos = (System.nanoTime() - start) / BENCHMARK_ITERATIONS;
+
+            assertEquals("Error: The timed parses don't agree", expected.mDays, streamed.mDays);
+            Log.i(LOG_TAG, numDays + " days (" + payload.length + " bytes): JSONObject "
+                    + jsonObjectNanos / 1000 + "us, streaming " + streamingNanos / 1000 + "us");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Fetches several locations at once from stub servers on localhost, one of which sends back
+    rubbish, and checks that the bad location doesn't take the others down with it.
+ */
+public class TestParallelForecastFetcher extends AndroidTestCase {
+
+    private static final int TEST_JULIAN_DAY = 2457012;
+
+    private final List<StubHttpServer> mServers = new ArrayList<StubHttpServer>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getSharedPreferences(ForecastCache.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (StubHttpServer server : mServers) {
+            server.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testFailureIsolated() throws Exception {
+        byte[][] bodies = {
+                ForecastResponses.createForecastPayload(14),
+                "{\"cod\":\"200\",\"list\":[{".getBytes("UTF-8"),
+                ForecastResponses.createForecastPayload(16),
+        };
+
+        List<ParallelForecastFetcher.Request> requests =
+                new ArrayList<ParallelForecastFetcher.Request>();
+        List<ForecastResponses.RecordingCallback> callbacks =
+                new ArrayList<ForecastResponses.RecordingCallback>();
+        for (int i = 0; i < bodies.length; i++) {
+            StubHttpServer server = new StubHttpServer();
+            mServers.add(server);
+            server.enqueue(new StubHttpServer.Response(200, bodies[i]));
+
+            ForecastResponses.RecordingCallback callback =
+                    new ForecastResponses.RecordingCallback();
+            callbacks.add(callback);
+            requests.add(new ParallelForecastFetcher.Request("location" + i,
+                    server.getUrl("/forecast"), true, callback));
+        }
+
+        ParallelForecastFetcher fetcher = new ParallelForecastFetcher(
+                new ForecastFetcher(new ForecastCache(mContext)), 4, 2);
+        fetcher.fetchAll(requests, TEST_JULIAN_DAY);
+
+        assertNull("Error: Good location failed", requests.get(0).getError());
+        assertTrue("Error: Good location not changed", requests.get(0).getResult().isChanged());
+        assertEquals("Error: Good location not parsed", 14, callbacks.get(0).mDays.size());
+
+        assertNull("Error: Bad location has a result", requests.get(1).getResult());
+        assertTrue("Error: Bad location should fail as malformed", requests.get(1).getError()
+                instanceof ForecastJsonParser.MalformedForecastException);
+
+        assertNull("Error: Good location failed", requests.get(2).getError());
+        assertEquals("Error: Good location not parsed", 16, callbacks.get(2).mDays.size());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.google.android.gms.wearable.Asset;
+
+import java.io.File;
+import java.util.Arrays;
+
+/*
+    Checks that an icon put in the cache comes back without being encoded again, from memory
+    and from its file, and logs how long encoding the art takes at a few icon sizes.
+ */
+public class TestWearableIconCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWearableIconCache.class.getSimpleName();
+
+    private static final String ART_PACK = "https://example.com/art_%s.png";
+    private static final int[] ICON_SIZES = {20, 40, 80, 160, 320};
+    private static final int ENCODES = 20;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(mContext.getCacheDir(), "test_" + WearableIconCache.DIR_NAME);
+        deleteDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    public void testHitSkipsEncode() {
+        WearableIconCache cache = new WearableIconCache(mDir, 64 * 1024);
+        String key = WearableIconCache.key(800, ART_PACK, 40);
+        assertNull("Error: Found an icon that was never put", cache.get(key));
+        assertEquals(1, cache.getMissCount());
+
+        Asset put = cache.put(key, createIcon(40));
+        assertSame("Error: The icon wasn't kept in memory", put, cache.get(key));
+        assertEquals(1, cache.getHitCount());
+        assertEquals("Error: Wrong bytes saved", put.getData().length, cache.getBytesSaved());
+
+        // As a new process would
+        cache.evictAll();
+        Asset read = cache.get(key);
+        assertNotNull("Error: The icon wasn't read back from its file", read);
+        assertTrue("Error: The icon read back differs",
+                Arrays.equals(put.getData(), read.getData()));
+
+        assertNull("Error: Another size should be another icon",
+                cache.get(WearableIconCache.key(800, ART_PACK, 80)));
+        assertNull("Error: Another art pack should be another icon",
+                cache.get(WearableIconCache.key(800, ART_PACK + "?dogs", 40)));
+    }
+
+    public void testEncodeBenchmark() {
+        for (int size : ICON_SIZES) {
+            Bitmap icon = createIcon(size);
+            int bytes = WearableIconCache.encode(icon).length;
+            long start = System.nanoTime();
+            for (int i = 0; i < ENCODES; i++) {
+                WearableIconCache.encode(icon);
+            }
+            long micros = (System.nanoTime() - start) / ENCODES / 1000;
+            Log.i(LOG_TAG, size + "x" + size + " icon: " + micros + "us per encode, "
+                    + bytes + " bytes");
+            icon.recycle();
+        }
+    }
+
+    private Bitmap createIcon(int size) {
+        Bitmap art = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.art_clear);
+        Bitmap icon = Bitmap.createScaledBitmap(art, size, size, true);
+        if (icon != art) {
+            art.recycle();
+        }
+        return icon;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.PollingCheck;
+import com.example.android.sunshine.shared.ReceiptBatch;
+import com.google.android.gms.wearable.DataMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Runs the wearable publisher against a fake data layer, checking that items queued while it
+    connects collapse to the newest for each path, that it gives up on a data layer that keeps
+    failing, and that it only skips data the watch's receipts say it has applied, and then only
+    until the data's sync time moves on far enough that the watch should hear it's current.
+ */
+public class TestWearablePublisher extends AndroidTestCase {
+
+    private static final long RETRY_DELAY_MILLIS = 10;
+
+    static class FakeDataLayer implements WearablePublisher.DataLayer {
+        final CountDownLatch mConnectAllowed = new CountDownLatch(1);
+        final AtomicInteger mConnects = new AtomicInteger();
+        final AtomicInteger mWriteAttempts = new AtomicInteger();
+        final List<DataMap> mWritten = new ArrayList<DataMap>();
+        volatile boolean mFailWrites;
+
+        @Override
+        public boolean connect(long timeoutMillis) {
+            mConnects.incrementAndGet();
+            try {
+                return mConnectAllowed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean putDataItem(String path, DataMap data, long timeoutMillis) {
+            mWriteAttempts.incrementAndGet();
+            if (mFailWrites) {
+                return false;
+            }
+            synchronized (mWritten) {
+                mWritten.add(data);
+            }
+            return true;
+        }
+    }
+
+    private static DataMap createTemps(String high) {
+        DataMap data = new DataMap();
+        data.putString("hightemp", high);
+        data.putString("lowtemp", "10");
+        return data;
+    }
+
+    public void testSupersededWritesCollapse() throws InterruptedException {
+        final FakeDataLayer dataLayer = new FakeDataLayer();
+        WearablePublisher publisher = new WearablePublisher(dataLayer, RETRY_DELAY_MILLIS);
+
+        publisher.publish("/temp", createTemps("20"));
+        publisher.publish("/temp", createTemps("21"));
+        publisher.publish("/temp", createTemps("22"));
+        dataLayer.mConnectAllowed.countDown();
+
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return dataLayer.mWriteAttempts.get() > 0;
+            }
+        }.run();
+        Thread.sleep(100);
+        assertEquals("Error: Should have connected once", 1, dataLayer.mConnects.get());
+        synchronized (dataLayer.mWritten) {
+            assertEquals("Error: Superseded items were written", 1, dataLayer.mWritten.size());
+            assertEquals("Error: The newest item wasn't the one written",
+                    "22", dataLayer.mWritten.get(0).getString("hightemp"));
+        }
+
+        // Still connected, so the next one goes straight out
+        publisher.publish("/temp", createTemps("23"));
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return dataLayer.mWriteAttempts.get() > 1;
+            }
+        }.run();
+        assertEquals("Error: Should have reused the connection", 1, dataLayer.mConnects.get());
+    }
+
+    public void testRetriesBounded() throws InterruptedException {
+        final FakeDataLayer dataLayer = new FakeDataLayer();
+        dataLayer.mConnectAllowed.countDown();
+        dataLayer.mFailWrites = true;
+        WearablePublisher publisher = new WearablePublisher(dataLayer, RETRY_DELAY_MILLIS);
+
+        publisher.publish("/temp", createTemps("20"));
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return dataLayer.mWriteAttempts.get() >= WearablePublisher.MAX_ATTEMPTS;
+            }
+        }.run();
+        Thread.sleep(RETRY_DELAY_MILLIS << WearablePublisher.MAX_ATTEMPTS);
+        assertEquals("Error: Kept retrying after giving up",
+                WearablePublisher.MAX_ATTEMPTS, dataLayer.mWriteAttempts.get());
+    }
+
+    public void testAppliedDataSkipped() throws InterruptedException {
+        final FakeDataLayer dataLayer = new FakeDataLayer();
+        dataLayer.mConnectAllowed.countDown();
+        WearablePublisher publisher = new WearablePublisher(dataLayer, RETRY_DELAY_MILLIS);
+
+        publisher.publish("/temp", createTemps("20"));
+        awaitWrites(dataLayer, 1);
+        publisher.onReceipts(createReceipt(dataLayer, 0, ReceiptBatch.STATUS_APPLIED));
+        assertEquals("Error: The receipt wasn't counted", 1, publisher.getReceiptCount());
+
+        publisher.publish("/temp", createTemps("20"));
+        Thread.sleep(100);
+        assertEquals("Error: Data the watch applied was written again",
+                1, dataLayer.mWriteAttempts.get());
+        assertEquals(1, publisher.getSkippedCount());
+
+        publisher.publish("/temp", createTemps("21"));
+        awaitWrites(dataLayer, 2);
+        publisher.onReceipts(createReceipt(dataLayer, 1, ReceiptBatch.STATUS_BAD_ICON));
+        assertEquals("Error: The failed receipt wasn't counted", 1, publisher.getFailedCount());
+
+        publisher.publish("/temp", createTemps("21"));
+        awaitWrites(dataLayer, 3);
+        synchronized (dataLayer.mWritten) {
+            assertTrue("Error: Each write should have its own version",
+                    dataLayer.mWritten.get(2).getLong(WearablePublisher.VERSION_KEY)
+                            > dataLayer.mWritten.get(1).getLong(WearablePublisher.VERSION_KEY));
+        }
+    }
+
+    public void testSyncedDataRefreshed() throws InterruptedException {
+        final FakeDataLayer dataLayer = new FakeDataLayer();
+        dataLayer.mConnectAllowed.countDown();
+        WearablePublisher publisher = new WearablePublisher(dataLayer, RETRY_DELAY_MILLIS);
+        long syncedAt = System.currentTimeMillis();
+
+        publisher.publish("/temp", createSyncedTemps("20", syncedAt));
+        awaitWrites(dataLayer, 1);
+        publisher.onReceipts(createReceipt(dataLayer, 0, ReceiptBatch.STATUS_APPLIED));
+
+        // Synced again soon after, with nothing new
+        publisher.publish("/temp", createSyncedTemps("20", syncedAt + 60 * 1000));
+        Thread.sleep(100);
+        assertEquals("Error: Data synced again soon after was written again",
+                1, dataLayer.mWriteAttempts.get());
+
+        publisher.publish("/temp",
+                createSyncedTemps("20", syncedAt + WearablePublisher.REFRESH_MILLIS));
+        awaitWrites(dataLayer, 2);
+        synchronized (dataLayer.mWritten) {
+            assertEquals("Error: The watch wasn't sent the new sync time",
+                    syncedAt + WearablePublisher.REFRESH_MILLIS,
+                    dataLayer.mWritten.get(1).getLong(WearablePublisher.SYNCED_AT_KEY));
+        }
+    }
+
+    private static DataMap createSyncedTemps(String high, long syncedAt) {
+        DataMap data = createTemps(high);
+        data.putLong(WearablePublisher.SYNCED_AT_KEY, syncedAt);
+        return data;
+    }
+
+    private static void awaitWrites(final FakeDataLayer dataLayer, final int writes) {
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return dataLayer.mWriteAttempts.get() >= writes;
+            }
+        }.run();
+    }
+
+    private static byte[] createReceipt(FakeDataLayer dataLayer, int write, int status) {
+        long version;
+        synchronized (dataLayer.mWritten) {
+            version = dataLayer.mWritten.get(write).getLong(WearablePublisher.VERSION_KEY);
+        }
+        return new ReceiptBatch(1).add(version, status, 5, 2000).encode();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal HTTP/1.0 server on localhost for exercising the sync code without the network.
+ * Responses are served in the order they were enqueued, one per connection, and the headers of
+ * every request are recorded so tests can check what was sent.
+ */
+public class StubHttpServer {
+
+    public static class Response {
+        final int mCode;
+        final Map<String, String> mHeaders = new HashMap<String, String>();
+        final byte[] mBody;
+
+        public Response(int code, byte[] body) {
+            mCode = code;
+            mBody = body == null ? new byte[0] : body;
+        }
+
+        public Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final LinkedList<Response> mResponses = new LinkedList<Response>();
+    private final List<Map<String, String>> mRequests =
+            Collections.synchronizedList(new ArrayList<Map<String, String>>());
+    private final Thread mThread;
+
+    public StubHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "StubHttpServer");
+        mThread.start();
+    }
+
+    public synchronized void enqueue(Response response) {
+        mResponses.add(response);
+    }
+
+    public URL getUrl(String path) throws IOException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    /**
+     * @return the request headers of every request served so far, with lower-cased names.
+     */
+    public List<Map<String, String>> getRequests() {
+        return mRequests;
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Server socket closed
+                return;
+            }
+            try {
+                handle(socket);
+            } catch (IOException e) {
+                // Drop the connection and wait for the next one
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        Map<String, String> headers = new HashMap<String, String>();
+        String line = reader.readLine();
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        mRequests.add(headers);
+
+        Response response;
+        synchronized (this) {
+            response = mResponses.isEmpty()
+                    ? new Response(500, null) : mResponses.removeFirst();
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.0 ").append(response.mCode).append(" Stub\r\n");
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.mBody.length).append("\r\n");
+        head.append("Connection: close\r\n\r\n");
+
+        OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        out.write(response.mBody);
+        out.flush();
+    }
+}
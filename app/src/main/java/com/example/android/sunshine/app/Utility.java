@@ -26,7 +26,9 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class Utility {
@@ -36,6 +38,26 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Returns every location a sync should refresh: the preferred location first, followed by the
+     * comma separated saved locations, without duplicates.
+     */
+    public static List<String> getSyncLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String savedLocations = prefs.getString(context.getString(R.string.pref_saved_locations_key),
+                context.getString(R.string.pref_saved_locations_default));
+
+        List<String> locations = new ArrayList<String>();
+        locations.add(getPreferredLocation(context));
+        for (String location : savedLocations.split(",")) {
+            location = location.trim();
+            if (location.length() > 0 && !locations.contains(location)) {
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
@@ -242,10 +264,19 @@ public class Utility {
      * @return true if Sunshine is using local graphics, false otherwise.
      */
     public static boolean usingLocalGraphics(Context context) {
+        return getArtPack(context).equals(context.getString(R.string.pref_art_pack_sunshine));
+    }
+
+    /**
+     * Helper method to return the art pack the user picked.
+     *
+     * @param context Context to use for retrieving the preference
+     * @return the art pack's URL format, with a %s for the name of the art.
+     */
+    public static String getArtPack(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String sunshineArtPack = context.getString(R.string.pref_art_pack_sunshine);
         return prefs.getString(context.getString(R.string.pref_art_pack_key),
-                sunshineArtPack).equals(sunshineArtPack);
+                context.getString(R.string.pref_art_pack_sunshine));
     }
 
     /**
@@ -257,9 +288,7 @@ public class Utility {
      * @return url for the corresponding weather artwork. null if no relation is found.
      */
     public static String getArtUrlForWeatherCondition(Context context, int weatherId) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String formatArtUrl = prefs.getString(context.getString(R.string.pref_art_pack_key),
-                context.getString(R.string.pref_art_pack_sunshine));
+        String formatArtUrl = getArtPack(context);
 
         // Based on weather code data found at:
         // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * A run of weather rows for a single location, held column by column in primitive arrays.
+ *
+ * This is what the sync adapter hands to {@link WeatherProvider} instead of one boxed
+ * ContentValues per day.  Within our own process the arrays travel in a Bundle by reference, so
+ * nothing is copied or boxed between parsing the forecast and binding it to the insert
+ * statement.
+ */
+public class ForecastBatch {
+
+    private static final String KEY_BATCHES = "batches";
+    private static final String KEY_LOCATION_ID = "location_id";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_DATES = "dates";
+    private static final String KEY_WEATHER_IDS = "weather_ids";
+    private static final String KEY_DESCRIPTIONS = "descriptions";
+    private static final String KEY_MIN_TEMPS = "min_temps";
+    private static final String KEY_MAX_TEMPS = "max_temps";
+    private static final String KEY_HUMIDITY = "humidity";
+    private static final String KEY_PRESSURE = "pressure";
+    private static final String KEY_WIND_SPEED = "wind_speed";
+    private static final String KEY_DEGREES = "degrees";
+
+    private long mLocationId;
+    private int mSize;
+
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private String[] mDescriptions;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidity;
+    private double[] mPressure;
+    private double[] mWindSpeed;
+    private double[] mDegrees;
+
+    public ForecastBatch(int capacity) {
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mDescriptions = new String[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidity = new double[capacity];
+        mPressure = new double[capacity];
+        mWindSpeed = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    private ForecastBatch() {
+    }
+
+    /**
+     * Appends a day to the batch, growing the columns if needed.  Descriptions come from a small
+     * fixed vocabulary ("Clear", "Rain", ...) so they are interned rather than kept per row.
+     */
+    public void add(long date, int weatherId, String description, double minTemp, double maxTemp,
+                    double humidity, double pressure, double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+        int i = mSize++;
+        mDates[i] = date;
+        mWeatherIds[i] = weatherId;
+        mDescriptions[i] = description.intern();
+        mMinTemps[i] = minTemp;
+        mMaxTemps[i] = maxTemp;
+        mHumidity[i] = humidity;
+        mPressure[i] = pressure;
+        mWindSpeed[i] = windSpeed;
+        mDegrees[i] = degrees;
+    }
+
+    private void grow() {
+        int capacity = Math.max(mDates.length * 2, 16);
+        long[] dates = new long[capacity];
+        int[] weatherIds = new int[capacity];
+        String[] descriptions = new String[capacity];
+        System.arraycopy(mDates, 0, dates, 0, mSize);
+        System.arraycopy(mWeatherIds, 0, weatherIds, 0, mSize);
+        System.arraycopy(mDescriptions, 0, descriptions, 0, mSize);
+        mDates = dates;
+        mWeatherIds = weatherIds;
+        mDescriptions = descriptions;
+        mMinTemps = grow(mMinTemps, capacity);
+        mMaxTemps = grow(mMaxTemps, capacity);
+        mHumidity = grow(mHumidity, capacity);
+        mPressure = grow(mPressure, capacity);
+        mWindSpeed = grow(mWindSpeed, capacity);
+        mDegrees = grow(mDegrees, capacity);
+    }
+
+    private double[] grow(double[] column, int capacity) {
+        double[] grown = new double[capacity];
+        System.arraycopy(column, 0, grown, 0, mSize);
+        return grown;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getLocationId() {
+        return mLocationId;
+    }
+
+    public void setLocationId(long locationId) {
+        mLocationId = locationId;
+    }
+
+    public long getDate(int i) {
+        return mDates[i];
+    }
+
+    public int getWeatherId(int i) {
+        return mWeatherIds[i];
+    }
+
+    public String getDescription(int i) {
+        return mDescriptions[i];
+    }
+
+    public double getMinTemp(int i) {
+        return mMinTemps[i];
+    }
+
+    public double getMaxTemp(int i) {
+        return mMaxTemps[i];
+    }
+
+    public double getHumidity(int i) {
+        return mHumidity[i];
+    }
+
+    public double getPressure(int i) {
+        return mPressure[i];
+    }
+
+    public double getWindSpeed(int i) {
+        return mWindSpeed[i];
+    }
+
+    public double getDegrees(int i) {
+        return mDegrees[i];
+    }
+
+    /**
+     * @return the digest of the day's weather, as stored in {@link WeatherEntry#COLUMN_DIGEST}.
+     */
+    public long getDigest(int i) {
+        return digest(mWeatherIds[i], mDescriptions[i], mMinTemps[i], mMaxTemps[i],
+                mHumidity[i], mPressure[i], mWindSpeed[i], mDegrees[i]);
+    }
+
+    // 64 bit FNV-1a offset basis and prime.  The hash takes whole values rather than bytes.
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Hashes a day's weather.  The hash only depends on the values, so it is the same from one
+     * run, or device, to the next, and is never 0.
+     */
+    static long digest(int weatherId, String description, double minTemp, double maxTemp,
+                       double humidity, double pressure, double windSpeed, double degrees) {
+        long hash = FNV_OFFSET;
+        hash = (hash ^ weatherId) * FNV_PRIME;
+        for (int i = 0; i < description.length(); i++) {
+            hash = (hash ^ description.charAt(i)) * FNV_PRIME;
+        }
+        hash = (hash ^ Double.doubleToLongBits(minTemp)) * FNV_PRIME;
+        hash = (hash ^ Double.doubleToLongBits(maxTemp)) * FNV_PRIME;
+        hash = (hash ^ Double.doubleToLongBits(humidity)) * FNV_PRIME;
+        hash = (hash ^ Double.doubleToLongBits(pressure)) * FNV_PRIME;
+        hash = (hash ^ Double.doubleToLongBits(windSpeed)) * FNV_PRIME;
+        hash = (hash ^ Double.doubleToLongBits(degrees)) * FNV_PRIME;
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Wraps the columns of one or more batches in a Bundle for
+     * {@link android.content.ContentResolver#call}.  The arrays are shared, not copied, so the
+     * batches shouldn't be modified afterwards.
+     */
+    public static Bundle toBundle(ForecastBatch... batches) {
+        Bundle[] bundles = new Bundle[batches.length];
+        for (int i = 0; i < batches.length; i++) {
+            bundles[i] = batches[i].writeToBundle();
+        }
+        Bundle bundle = new Bundle();
+        bundle.putParcelableArray(KEY_BATCHES, bundles);
+        return bundle;
+    }
+
+    public static ForecastBatch[] fromBundle(Bundle bundle) {
+        Parcelable[] bundles = bundle.getParcelableArray(KEY_BATCHES);
+        if (bundles == null) {
+            throw new IllegalArgumentException("Bundle does not hold a ForecastBatch");
+        }
+        ForecastBatch[] batches = new ForecastBatch[bundles.length];
+        for (int i = 0; i < bundles.length; i++) {
+            batches[i] = readFromBundle((Bundle) bundles[i]);
+        }
+        return batches;
+    }
+
+    private Bundle writeToBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(KEY_LOCATION_ID, mLocationId);
+        bundle.putInt(KEY_SIZE, mSize);
+        bundle.putLongArray(KEY_DATES, mDates);
+        bundle.putIntArray(KEY_WEATHER_IDS, mWeatherIds);
+        bundle.putStringArray(KEY_DESCRIPTIONS, mDescriptions);
+        bundle.putDoubleArray(KEY_MIN_TEMPS, mMinTemps);
+        bundle.putDoubleArray(KEY_MAX_TEMPS, mMaxTemps);
+        bundle.putDoubleArray(KEY_HUMIDITY, mHumidity);
+        bundle.putDoubleArray(KEY_PRESSURE, mPressure);
+        bundle.putDoubleArray(KEY_WIND_SPEED, mWindSpeed);
+        bundle.putDoubleArray(KEY_DEGREES, mDegrees);
+        return bundle;
+    }
+
+    private static ForecastBatch readFromBundle(Bundle bundle) {
+        ForecastBatch batch = new ForecastBatch();
+        batch.mLocationId = bundle.getLong(KEY_LOCATION_ID);
+        batch.mSize = bundle.getInt(KEY_SIZE);
+        batch.mDates = bundle.getLongArray(KEY_DATES);
+        batch.mWeatherIds = bundle.getIntArray(KEY_WEATHER_IDS);
+        batch.mDescriptions = bundle.getStringArray(KEY_DESCRIPTIONS);
+        batch.mMinTemps = bundle.getDoubleArray(KEY_MIN_TEMPS);
+        batch.mMaxTemps = bundle.getDoubleArray(KEY_MAX_TEMPS);
+        batch.mHumidity = bundle.getDoubleArray(KEY_HUMIDITY);
+        batch.mPressure = bundle.getDoubleArray(KEY_PRESSURE);
+        batch.mWindSpeed = bundle.getDoubleArray(KEY_WIND_SPEED);
+        batch.mDegrees = bundle.getDoubleArray(KEY_DEGREES);
+        if (batch.mDates == null || batch.mDates.length < batch.mSize) {
+            throw new IllegalArgumentException("Bundle does not hold a ForecastBatch");
+        }
+        return batch;
+    }
+
+    /**
+     * Converts the batch to one ContentValues per row, for devices where
+     * {@link android.content.ContentResolver#call} isn't available.
+     */
+    public ContentValues[] toContentValues() {
+        ContentValues[] values = new ContentValues[mSize];
+        for (int i = 0; i < mSize; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, mDates[i]);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, mHumidity[i]);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, mPressure[i]);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, mWindSpeed[i]);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, mDegrees[i]);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, mMaxTemps[i]);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, mMinTemps[i]);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, mDescriptions[i]);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds[i]);
+            weatherValues.put(WeatherEntry.COLUMN_DIGEST, getDigest(i));
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+}
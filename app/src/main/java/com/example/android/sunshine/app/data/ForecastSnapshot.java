@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.util.AtomicFile;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The preferred location's forecast as of the last sync: what the notification, the widgets,
+ * Muzei and the wearable show.
+ *
+ * The sync adapter builds one from the forecast it has just parsed and publishes it, and the
+ * consumers read that instead of each querying the provider.  Snapshots are immutable, so the
+ * current one is held in an AtomicReference and read without locking.  It is also written to a
+ * small binary file, so a fresh process doesn't have to go to the database for it.  When there
+ * is no snapshot for the location, {@link #get} builds one with a single query.
+ */
+public final class ForecastSnapshot {
+
+    private static final String LOG_TAG = ForecastSnapshot.class.getSimpleName();
+
+    static final String FILE_NAME = "forecast_snapshot";
+
+    // Bump this whenever the file layout changes; files in an older format are ignored
+    private static final int FORMAT = 3;
+
+    private static final String[] SNAPSHOT_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_DIGEST,
+            WeatherEntry.COLUMN_LOC_KEY
+    };
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_SHORT_DESC = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+    private static final int INDEX_DIGEST = 5;
+    private static final int INDEX_LOCATION_ID = 6;
+
+    private static final AtomicReference<ForecastSnapshot> sCurrent =
+            new AtomicReference<ForecastSnapshot>();
+    private static volatile boolean sLoaded;
+
+    private final long mVersion;
+    private final String mLocationSetting;
+    private final long mLocationId;
+    private final long[] mDates;
+    private final int[] mWeatherIds;
+    private final String[] mDescriptions;
+    private final double[] mMaxTemps;
+    private final double[] mMinTemps;
+    private final long[] mDigests;
+
+    private ForecastSnapshot(long version, String locationSetting, long locationId, int size) {
+        mVersion = version;
+        mLocationSetting = locationSetting;
+        mLocationId = locationId;
+        mDates = new long[size];
+        mWeatherIds = new int[size];
+        mDescriptions = new String[size];
+        mMaxTemps = new double[size];
+        mMinTemps = new double[size];
+        mDigests = new long[size];
+    }
+
+    /**
+     * Builds a snapshot of a location's forecast as the sync adapter stored it.
+     */
+    public static ForecastSnapshot fromBatch(Context context, String locationSetting,
+                                             ForecastBatch batch) {
+        ForecastSnapshot snapshot = new ForecastSnapshot(
+                nextVersion(getCurrent(context)), locationSetting, batch.getLocationId(),
+                batch.size());
+        // Normalized the way WeatherProvider stores them, with one Time for the whole batch
+        Time time = new Time();
+        for (int i = 0; i < batch.size(); i++) {
+            long date = batch.getDate(i);
+            time.set(date);
+            snapshot.mDates[i] = time.setJulianDay(Time.getJulianDay(date, time.gmtoff));
+            snapshot.mWeatherIds[i] = batch.getWeatherId(i);
+            snapshot.mDescriptions[i] = batch.getDescription(i);
+            snapshot.mMaxTemps[i] = batch.getMaxTemp(i);
+            snapshot.mMinTemps[i] = batch.getMinTemp(i);
+            snapshot.mDigests[i] = batch.getDigest(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Makes the snapshot the current one and writes it out.  This should not be called from the
+     * UI thread because it writes to a file.
+     */
+    public static void publish(Context context, ForecastSnapshot snapshot) {
+        sCurrent.set(snapshot);
+        sLoaded = true;
+
+        AtomicFile file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            snapshot.writeTo(out);
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing forecast snapshot", e);
+            file.failWrite(stream);
+        }
+    }
+
+    /**
+     * @return the forecast for the location, from the current snapshot if it is for that
+     *         location, otherwise straight from the provider, or null if there is none.
+     */
+    public static ForecastSnapshot get(Context context, String locationSetting) {
+        ForecastSnapshot current = getCurrent(context);
+        if (current != null && current.mLocationSetting.equals(locationSetting)) {
+            return current;
+        }
+
+        ForecastSnapshot queried = query(context, locationSetting, nextVersion(current));
+        if (queried != null) {
+            // Only replace what we saw, so a snapshot the sync adapter published meanwhile wins
+            sCurrent.compareAndSet(current, queried);
+        }
+        return queried;
+    }
+
+    private static ForecastSnapshot getCurrent(Context context) {
+        if (!sLoaded) {
+            // Two threads may both read the file; whichever is second just finds it set
+            ForecastSnapshot loaded = read(context);
+            if (loaded != null) {
+                sCurrent.compareAndSet(null, loaded);
+            }
+            sLoaded = true;
+        }
+        return sCurrent.get();
+    }
+
+    /**
+     * Forgets the current snapshot, so the next one is read from the file.  For tests.
+     */
+    static void forget() {
+        sCurrent.set(null);
+        sLoaded = false;
+    }
+
+    // Each snapshot is numbered one more than the one it replaces
+    private static long nextVersion(ForecastSnapshot current) {
+        return current != null ? current.mVersion + 1 : 1;
+    }
+
+    private static ForecastSnapshot query(Context context, String locationSetting,
+                                          long version) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(locationSetting), SNAPSHOT_COLUMNS, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ForecastSnapshot snapshot = new ForecastSnapshot(version, locationSetting,
+                    cursor.getLong(INDEX_LOCATION_ID), cursor.getCount());
+            cursor.moveToPosition(-1);
+            for (int i = 0; cursor.moveToNext(); i++) {
+                snapshot.mDates[i] = cursor.getLong(INDEX_DATE);
+                snapshot.mWeatherIds[i] = cursor.getInt(INDEX_WEATHER_ID);
+                snapshot.mDescriptions[i] = cursor.getString(INDEX_SHORT_DESC);
+                snapshot.mMaxTemps[i] = cursor.getDouble(INDEX_MAX_TEMP);
+                snapshot.mMinTemps[i] = cursor.getDouble(INDEX_MIN_TEMP);
+                snapshot.mDigests[i] = cursor.getLong(INDEX_DIGEST);
+            }
+            return snapshot;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ForecastSnapshot read(Context context) {
+        AtomicFile file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        DataInputStream in = null;
+        try {
+            FileInputStream stream = file.openRead();
+            in = new DataInputStream(new BufferedInputStream(stream));
+            return readFrom(in);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading forecast snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT);
+        out.writeLong(mVersion);
+        out.writeUTF(mLocationSetting);
+        out.writeLong(mLocationId);
+        out.writeInt(mDates.length);
+        for (int i = 0; i < mDates.length; i++) {
+            out.writeLong(mDates[i]);
+            out.writeInt(mWeatherIds[i]);
+            out.writeUTF(mDescriptions[i]);
+            out.writeDouble(mMaxTemps[i]);
+            out.writeDouble(mMinTemps[i]);
+            out.writeLong(mDigests[i]);
+        }
+    }
+
+    private static ForecastSnapshot readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FORMAT) {
+            return null;
+        }
+        long version = in.readLong();
+        String locationSetting = in.readUTF();
+        long locationId = in.readLong();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Bad forecast snapshot size " + size);
+        }
+        ForecastSnapshot snapshot =
+                new ForecastSnapshot(version, locationSetting, locationId, size);
+        for (int i = 0; i < size; i++) {
+            snapshot.mDates[i] = in.readLong();
+            snapshot.mWeatherIds[i] = in.readInt();
+            snapshot.mDescriptions[i] = in.readUTF().intern();
+            snapshot.mMaxTemps[i] = in.readDouble();
+            snapshot.mMinTemps[i] = in.readDouble();
+            snapshot.mDigests[i] = in.readLong();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the index of the day that date falls on, or -1 if the snapshot doesn't have it.
+     */
+    public int indexOfDay(long date) {
+        long day = WeatherContract.normalizeDate(date);
+        int i = indexOfFirstDayFrom(date);
+        return i < mDates.length && mDates[i] == day ? i : -1;
+    }
+
+    /**
+     * @return the index of the first day on or after the one date falls on, or {@link #size()}
+     *         if there is none.
+     */
+    public int indexOfFirstDayFrom(long date) {
+        long day = WeatherContract.normalizeDate(date);
+        int i = 0;
+        while (i < mDates.length && mDates[i] < day) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Compares the weather for a run of days with another snapshot's, by digest.
+     *
+     * @param date A time on the first day to compare.
+     * @param days How many days to compare, from that one on.
+     * @return true if the other snapshot is for the same location and has the same days with
+     *         the same weather.  Unknown digests never match.
+     */
+    public boolean hasSameDays(ForecastSnapshot other, long date, int days) {
+        if (other == null || !other.mLocationSetting.equals(mLocationSetting)) {
+            return false;
+        }
+        int i = indexOfFirstDayFrom(date);
+        int j = other.indexOfFirstDayFrom(date);
+        for (int n = 0; n < days && (i < mDates.length || j < other.mDates.length);
+             n++, i++, j++) {
+            if (i == mDates.length || j == other.mDates.length
+                    || mDates[i] != other.mDates[j]
+                    || mDigests[i] == 0 || mDigests[i] != other.mDigests[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    /**
+     * @return the location's row id in the provider.
+     */
+    public long getLocationId() {
+        return mLocationId;
+    }
+
+    public int size() {
+        return mDates.length;
+    }
+
+    public long getDate(int i) {
+        return mDates[i];
+    }
+
+    public int getWeatherId(int i) {
+        return mWeatherIds[i];
+    }
+
+    public String getDescription(int i) {
+        return mDescriptions[i];
+    }
+
+    public double getMaxTemp(int i) {
+        return mMaxTemps[i];
+    }
+
+    public double getMinTemp(int i) {
+        return mMinTemps[i];
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps location settings to their row ids in the location table, so that {@link WeatherProvider}
+ * doesn't have to look them up on every sync and every weather query.  There is one provider per
+ * process, so this is effectively a process wide cache.
+ *
+ * A row's id never changes while the row exists, so entries only go stale when rows are updated
+ * or deleted.  Both are rare and can touch any row, so they simply clear the whole cache.
+ */
+class LocationIdCache {
+
+    private final Map<String, Long> mIds = new HashMap<String, Long>();
+    // Bumped on every clear, so an id looked up before a clear isn't cached after it
+    private int mGeneration;
+
+    /**
+     * @return the row id for the location setting, or -1 if it isn't cached.
+     */
+    synchronized long get(String locationSetting) {
+        Long id = mIds.get(locationSetting);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return a token to pass to {@link #put} for an id about to be read from the database.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches an id, unless the cache has been cleared since it was read.
+     */
+    synchronized void put(String locationSetting, long id, int generation) {
+        if (generation == mGeneration) {
+            mIds.put(locationSetting, id);
+        }
+    }
+
+    synchronized void clear() {
+        mIds.clear();
+        mGeneration++;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small least recently used cache of compiled statements, keyed by their SQL, so that
+ * {@link WeatherProvider} compiles each of its fixed statements once rather than on every call.
+ *
+ * A statement holds its bindings, so it can only be used by one thread at a time.  Acquiring a
+ * statement takes it out of the cache until it is released; a second thread that wants the same
+ * statement meanwhile just compiles its own, and only one of the two is kept.
+ */
+class StatementCache {
+
+    private final int mMaxSize;
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    StatementCache(int maxSize) {
+        mMaxSize = maxSize;
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > mMaxSize) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return a compiled statement for the SQL, which must be handed back to {@link #release}.
+     */
+    SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement;
+        synchronized (this) {
+            statement = mStatements.remove(sql);
+        }
+        return statement != null ? statement : db.compileStatement(sql);
+    }
+
+    void release(String sql, SQLiteStatement statement) {
+        SQLiteStatement previous;
+        synchronized (this) {
+            previous = mStatements.put(sql, statement);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Closes every cached statement, e.g. before the database is closed.
+     */
+    synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+}
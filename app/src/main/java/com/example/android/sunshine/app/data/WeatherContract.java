@@ -44,6 +44,31 @@ public class WeatherContract {
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
 
+    // Methods the ContentProvider supports through ContentResolver.call.  Merging forecasts takes
+    // one or more ForecastBatches, each carrying a location's forecast in primitive arrays rather
+    // than one ContentValues per day, and writes only the days that changed.  If the call's arg
+    // is a date, the days up to and including it are deleted in the same transaction.
+    public static final String METHOD_MERGE_FORECAST = "mergeForecast";
+
+    // Adds the location setting passed as the call's arg if it isn't already in the location
+    // table, and returns its row id either way.  The extras hold the city name and coordinates
+    // under their LocationEntry column names.
+    public static final String METHOD_UPSERT_LOCATION = "upsertLocation";
+
+    // Key for the number of rows written, in the Bundle returned from a call
+    public static final String EXTRA_ROW_COUNT = "row_count";
+
+    // Key for the number of rows deleted, in the Bundle returned from a call
+    public static final String EXTRA_DELETED_COUNT = "deleted_count";
+
+    // Key for a location's row id, in the Bundle returned from a call
+    public static final String EXTRA_LOCATION_ID = "location_id";
+
+    // Keys for the location ids and dates of the rows a merge wrote, as parallel long arrays in
+    // the Bundle it returns
+    public static final String EXTRA_CHANGED_LOCATION_IDS = "changed_location_ids";
+    public static final String EXTRA_CHANGED_DATES = "changed_dates";
+
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
@@ -126,6 +151,11 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // A hash of the day's weather, from the weather id through the wind direction, so a sync
+        // can tell which days changed without comparing every column.  0 means unknown, which
+        // never matches.
+        public static final String COLUMN_DIGEST = "digest";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -15,9 +15,12 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
@@ -28,12 +31,76 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    // Version 3 added the weather_location_date index, version 4 the weather digest column.
+    private static final int DATABASE_VERSION = 4;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Every screen, widget and Muzei reads a location's weather from a date onwards, in date
+    // order.  Keyed on location then date, and carrying the columns the list, the widgets and
+    // Muzei show, this index answers those queries without touching the weather table at all.
+    // (The UNIQUE constraint's own index leads with the date, so it can't serve them.)
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
+    private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_WEATHER_LOCATION_DATE + " ON " +
+                    WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherEntry.COLUMN_MIN_TEMP + ");";
+
+    // From Honeycomb on the database keeps a write-ahead log, so the sync adapter's write
+    // transactions don't hold up the loaders, widgets and Muzei reading the forecast.  SQLite
+    // copies the log back into the database once it grows past WAL_AUTOCHECKPOINT_PAGES, and
+    // trims the file back to WAL_SIZE_LIMIT_BYTES when it next starts it over.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 100;
+    static final int WAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // Before Jelly Bean the helper can't be asked to open the database this way
+            db.enableWriteAheadLogging();
+        }
+        pragma(db, "wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+        pragma(db, "journal_size_limit = " + WAL_SIZE_LIMIT_BYTES);
+    }
+
+    /**
+     * Copies as much of the write-ahead log back into the database as the open readers allow,
+     * without waiting for them, so the next writer can start the log over from the beginning.
+     * Call it outside a transaction, after a large write.
+     */
+    static void checkpoint(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            pragma(db, "wal_checkpoint");
+        }
+    }
+
+    // PRAGMAs that return a row have to be run as a query
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -69,6 +136,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
                 WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
                 WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DIGEST + " INTEGER NOT NULL DEFAULT 0, " +
 
                 // Set up the location column as a foreign key to location table.
                 " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
@@ -81,18 +149,32 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        if (oldVersion < 2) {
+            // Version 1 predates the current tables.  This database is only a cache for online
+            // data, so there's nothing to lose by discarding it and starting over.
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+
+        // From here on each step takes the schema up one version, keeping the data, so the
+        // user's forecasts survive the upgrade.  Each also checks newVersion, so the tests can
+        // take a database up a single step.
+        if (oldVersion < 3 && newVersion >= 3) {
+            sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        }
+        if (oldVersion < 4 && newVersion >= 4) {
+            // Existing rows have no digest, so the next sync rewrites them once
+            sqLiteDatabase.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + " ADD COLUMN " +
+                    WeatherEntry.COLUMN_DIGEST + " INTEGER NOT NULL DEFAULT 0");
+        }
     }
 }
@@ -21,14 +21,32 @@ import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
+import android.text.format.Time;
+
+import java.util.Arrays;
 
 public class WeatherProvider extends ContentProvider {
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private final LocationIdCache mLocationIds = new LocationIdCache();
+
+    // The provider's own statements, and the SQL of the weather/* and location queries, which
+    // only vary by projection, selection and sort order, are kept rather than rebuilt per call.
+    // Running identical SQL also lets SQLite reuse the statement it prepared last time.
+    private static final int STATEMENT_CACHE_SIZE = 8;
+    private static final int QUERY_CACHE_SIZE = 16;
+    private final StatementCache mStatements = new StatementCache(STATEMENT_CACHE_SIZE);
+    private final LruCache<QueryKey, String> mQueries =
+            new LruCache<QueryKey, String>(QUERY_CACHE_SIZE);
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
@@ -52,62 +70,226 @@ public class WeatherProvider extends ContentProvider {
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //weather.location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //weather.location_id = ? AND date = ?
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    //SELECT _id FROM location WHERE location_setting = ?
+    private static final String sLocationIdSql =
+            "SELECT " + WeatherContract.LocationEntry._ID +
+                    " FROM " + WeatherContract.LocationEntry.TABLE_NAME +
+                    " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    //INSERT OR IGNORE INTO location (location_setting, city_name, coord_lat, coord_long) ...
+    private static final String sInsertLocationSql =
+            "INSERT OR IGNORE INTO " + WeatherContract.LocationEntry.TABLE_NAME + " (" +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                    WeatherContract.LocationEntry.COLUMN_CITY_NAME + ", " +
+                    WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", " +
+                    WeatherContract.LocationEntry.COLUMN_COORD_LONG +
+                    ") VALUES (?, ?, ?, ?)";
+
+    /**
+     * @return the row id of the location setting, or -1 if it isn't in the location table.
+     */
+    private long getLocationId(SQLiteDatabase db, String locationSetting) {
+        long locationId = mLocationIds.get(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        int generation = mLocationIds.getGeneration();
+        SQLiteStatement select = mStatements.acquire(db, sLocationIdSql);
+        try {
+            select.bindString(1, locationSetting);
+            locationId = select.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        } finally {
+            mStatements.release(sLocationIdSql, select);
+        }
+        mLocationIds.put(locationSetting, locationId, generation);
+        return locationId;
+    }
+
+    /**
+     * Adds a location unless its setting is already in the table.  The location table's UNIQUE
+     * constraint makes the insert a no-op in that case, so this is a single statement for a new
+     * location and, thanks to the id cache, usually none at all for a known one.  The existing
+     * row is kept rather than replaced so its id, which the weather table refers to, stays put.
+     *
+     * @return the row id of the location.
+     */
+    long upsertLocation(String locationSetting, String cityName, double lat, double lon) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long locationId = getLocationId(db, locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+
+        int generation = mLocationIds.getGeneration();
+        SQLiteStatement insert = mStatements.acquire(db, sInsertLocationSql);
+        try {
+            insert.bindString(1, locationSetting);
+            insert.bindString(2, cityName);
+            insert.bindDouble(3, lat);
+            insert.bindDouble(4, lon);
+            locationId = insert.executeInsert();
+        } finally {
+            mStatements.release(sInsertLocationSql, insert);
+        }
+        if (locationId == -1) {
+            // Someone else added it since we looked
+            return getLocationId(db, locationSetting);
+        }
+        mLocationIds.put(locationSetting, locationId, generation);
+        getContext().getContentResolver().notifyChange(
+                WeatherContract.LocationEntry.CONTENT_URI, null);
+        return locationId;
+    }
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
         String[] selectionArgs;
         String selection;
 
+        // Select on the weather table's location id when we know it, rather than on the
+        // location setting through the join
+        long locationId = getLocationId(db, locationSetting);
+        String locationArg = locationId != -1 ? Long.toString(locationId) : locationSetting;
+
         if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+            selection = locationId != -1 ? sLocationIdSelection : sLocationSettingSelection;
+            selectionArgs = new String[]{locationArg};
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            selectionArgs = new String[]{locationArg, Long.toString(startDate)};
+            selection = locationId != -1
+                    ? sLocationIdWithStartDateSelection : sLocationSettingWithStartDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+        return queryCached(db, WEATHER_WITH_LOCATION, projection, selection, selectionArgs,
+                sortOrder);
     }
 
     private Cursor getWeatherByLocationSettingAndDate(
             Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        long locationId = getLocationId(db, locationSetting);
+        return queryCached(db, WEATHER_WITH_LOCATION_AND_DATE,
                 projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
+                locationId != -1 ? sLocationIdAndDaySelection : sLocationSettingAndDaySelection,
+                new String[]{locationId != -1 ? Long.toString(locationId) : locationSetting,
+                        Long.toString(date)},
                 sortOrder
         );
     }
 
+    /**
+     * Runs a query of one of the fixed shapes, building its SQL only the first time it is seen.
+     */
+    private Cursor queryCached(SQLiteDatabase db, int match, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder) {
+        QueryKey key = new QueryKey(match, projection, selection, sortOrder);
+        String sql = mQueries.get(key);
+        if (sql == null) {
+            sql = buildQuery(match, projection, selection, sortOrder);
+            // Keep our own copy of the projection, in case the caller reuses its array
+            mQueries.put(new QueryKey(match, projection == null ? null : projection.clone(),
+                    selection, sortOrder), sql);
+        }
+        return db.rawQuery(sql, selectionArgs);
+    }
+
+    @SuppressWarnings("deprecation")
+    static String buildQuery(int match, String[] projection, String selection,
+                             String sortOrder) {
+        switch (match) {
+            case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                // The variant without selectionArgs is only available from Honeycomb on
+                return sWeatherByLocationSettingQueryBuilder.buildQuery(
+                        projection, selection, null, null, null, sortOrder, null);
+            case LOCATION:
+                return SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.LocationEntry.TABLE_NAME, projection, selection,
+                        null, null, sortOrder, null);
+            default:
+                throw new IllegalArgumentException("No cached query for " + match);
+        }
+    }
+
+    /**
+     * Identifies a query in the query cache.
+     */
+    private static final class QueryKey {
+        final int mMatch;
+        final String[] mProjection;
+        final String mSelection;
+        final String mSortOrder;
+
+        QueryKey(int match, String[] projection, String selection, String sortOrder) {
+            mMatch = match;
+            mProjection = projection;
+            mSelection = selection;
+            mSortOrder = sortOrder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) o;
+            return mMatch == other.mMatch
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && TextUtils.equals(mSelection, other.mSelection)
+                    && TextUtils.equals(mSortOrder, other.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mMatch;
+            result = 31 * result + Arrays.hashCode(mProjection);
+            result = 31 * result + (mSelection != null ? mSelection.hashCode() : 0);
+            result = 31 * result + (mSortOrder != null ? mSortOrder.hashCode() : 0);
+            return result;
+        }
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -202,13 +384,10 @@ public class WeatherProvider extends ContentProvider {
             }
             // "location"
             case LOCATION: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.LocationEntry.TABLE_NAME,
+                retCursor = queryCached(mOpenHelper.getReadableDatabase(), LOCATION,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
                         sortOrder
                 );
                 break;
@@ -233,7 +412,8 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                        withDigest(values));
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
@@ -270,6 +450,7 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                mLocationIds.clear();
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -289,6 +470,32 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    /**
+     * @return the values with the digest of the weather they hold added, if they have all of it
+     *         and no digest already.  Otherwise the row is stored with a digest of 0, unknown.
+     */
+    private static ContentValues withDigest(ContentValues values) {
+        if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DIGEST)) {
+            return values;
+        }
+        Integer weatherId = values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        String description = values.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        Double minTemp = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        Double maxTemp = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        Double humidity = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY);
+        Double pressure = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE);
+        Double windSpeed = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED);
+        Double degrees = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES);
+        if (weatherId == null || description == null || minTemp == null || maxTemp == null
+                || humidity == null || pressure == null || windSpeed == null || degrees == null) {
+            return values;
+        }
+        ContentValues digested = new ContentValues(values);
+        digested.put(WeatherContract.WeatherEntry.COLUMN_DIGEST, ForecastBatch.digest(weatherId,
+                description, minTemp, maxTemp, humidity, pressure, windSpeed, degrees));
+        return digested;
+    }
+
     @Override
     public int update(
             Uri uri, ContentValues values, String selection, String[] selectionArgs) {
@@ -297,14 +504,22 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                // Part of a day's weather changing leaves its digest stale, so mark it unknown
+                ContentValues digested = withDigest(values);
+                if (!digested.containsKey(WeatherContract.WeatherEntry.COLUMN_DIGEST)) {
+                    digested = new ContentValues(values);
+                    digested.put(WeatherContract.WeatherEntry.COLUMN_DIGEST, 0);
+                }
+                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, digested,
+                        selection, selectionArgs);
                 break;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                mLocationIds.clear();
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -326,7 +541,8 @@ public class WeatherProvider extends ContentProvider {
                 try {
                     for (ContentValues value : values) {
                         normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                                withDigest(value));
                         if (_id != -1) {
                             returnCount++;
                         }
@@ -342,12 +558,239 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    //INSERT INTO weather (location_id, date, ...) VALUES (?, ?, ...)
+    private static final String sInsertWeatherSql =
+            "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DEGREES + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DIGEST +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    //UPDATE weather SET weather_id = ?, short_desc = ?, ... WHERE _id = ?
+    private static final String sUpdateWeatherSql =
+            "UPDATE " + WeatherContract.WeatherEntry.TABLE_NAME + " SET " +
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " = ?, " +
+                    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " = ?, " +
+                    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " = ?, " +
+                    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " = ?, " +
+                    WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " = ?, " +
+                    WeatherContract.WeatherEntry.COLUMN_PRESSURE + " = ?, " +
+                    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " = ?, " +
+                    WeatherContract.WeatherEntry.COLUMN_DEGREES + " = ?, " +
+                    WeatherContract.WeatherEntry.COLUMN_DIGEST + " = ? WHERE " +
+                    WeatherContract.WeatherEntry._ID + " = ?";
+
+    //SELECT location_setting FROM location WHERE _id = ?
+    private static final String sLocationSettingSql =
+            "SELECT " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING +
+                    " FROM " + WeatherContract.LocationEntry.TABLE_NAME +
+                    " WHERE " + WeatherContract.LocationEntry._ID + " = ?";
+
+    // The stored rows of a location, to compare a new forecast against
+    private static final String[] MERGE_COLUMNS = {
+            WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_DIGEST
+    };
+
+    // these indices must match MERGE_COLUMNS
+    private static final int MERGE_ID = 0;
+    private static final int MERGE_DATE = 1;
+    private static final int MERGE_DIGEST = 2;
+
+    /**
+     * Merges whole forecasts into the weather table, and prunes the days that have passed, in
+     * one transaction.  Each day's digest is compared with the one stored for it: new days are
+     * inserted, days that differ are updated in place and days that are the same are left alone.
+     *
+     * Every row is bound to one of two compiled statements rather than building and compiling
+     * an insert per ContentValues.
+     *
+     * Readers see the table before or after the whole merge, never part way through, and are
+     * told about it once, after it commits, on the narrowest uri that covers every row that was
+     * written or deleted.  A sync that brings nothing new notifies nobody.
+     *
+     * @param pruneDate Rows dated on or before this are deleted, or -1 to keep them all.
+     * @return the number of rows written and deleted, and the location id and date of each
+     *         row written, as returned from {@link #call}.
+     */
+    Bundle mergeForecasts(ForecastBatch[] batches, long pruneDate) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // One Time for the whole batch, rather than one per row in WeatherContract.normalizeDate
+        Time time = new Time();
+        // Parallel columns of the rows written; no merge writes more rows than it was given
+        int capacity = 0;
+        for (ForecastBatch batch : batches) {
+            capacity += batch.size();
+        }
+        long[] changedLocationIds = new long[capacity];
+        long[] changedDates = new long[capacity];
+        int changedCount = 0;
+        // The stored dates of a location, in cursor order, grown to the largest location
+        long[] storedDates = new long[0];
+        String changedSetting = null;
+        boolean changedSettings = false;
+        int rowsDeleted = 0;
+        SQLiteStatement insert = null;
+        SQLiteStatement update = null;
+        SQLiteStatement selectSetting = null;
+        db.beginTransaction();
+        try {
+            // Acquired inside the transaction's try, so a statement that fails to compile
+            // still ends it
+            insert = mStatements.acquire(db, sInsertWeatherSql);
+            update = mStatements.acquire(db, sUpdateWeatherSql);
+            selectSetting = mStatements.acquire(db, sLocationSettingSql);
+            for (ForecastBatch batch : batches) {
+                final long locationId = batch.getLocationId();
+                String locationSetting = null;
+                // Sorted by date, so a day's row is found with a binary search over the dates
+                Cursor stored = db.query(WeatherContract.WeatherEntry.TABLE_NAME, MERGE_COLUMNS,
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                        new String[]{Long.toString(locationId)}, null, null,
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+                try {
+                    final int storedCount = stored.getCount();
+                    if (storedDates.length < storedCount) {
+                        storedDates = new long[storedCount];
+                    }
+                    while (stored.moveToNext()) {
+                        storedDates[stored.getPosition()] = stored.getLong(MERGE_DATE);
+                    }
+
+                    final int size = batch.size();
+                    for (int i = 0; i < size; i++) {
+                        long date = batch.getDate(i);
+                        time.set(date);
+                        date = time.setJulianDay(Time.getJulianDay(date, time.gmtoff));
+
+                        int position = Arrays.binarySearch(storedDates, 0, storedCount, date);
+                        if (position < 0) {
+                            insert.bindLong(1, locationId);
+                            insert.bindLong(2, date);
+                            bindWeatherValues(insert, 3, batch, i);
+                            if (insert.executeInsert() == -1) {
+                                continue;
+                            }
+                        } else {
+                            stored.moveToPosition(position);
+                            if (stored.getLong(MERGE_DIGEST) == batch.getDigest(i)) {
+                                continue;
+                            }
+                            bindWeatherValues(update, 1, batch, i);
+                            update.bindLong(10, stored.getLong(MERGE_ID));
+                            update.execute();
+                        }
+
+                        if (locationSetting == null) {
+                            selectSetting.bindLong(1, locationId);
+                            locationSetting = selectSetting.simpleQueryForString();
+                            changedSettings |= changedSetting != null;
+                            changedSetting = locationSetting;
+                        }
+                        changedLocationIds[changedCount] = locationId;
+                        changedDates[changedCount] = date;
+                        changedCount++;
+                    }
+                } finally {
+                    stored.close();
+                }
+            }
+
+            if (pruneDate >= 0) {
+                rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(pruneDate)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (insert != null) {
+                mStatements.release(sInsertWeatherSql, insert);
+            }
+            if (update != null) {
+                mStatements.release(sUpdateWeatherSql, update);
+            }
+            if (selectSetting != null) {
+                mStatements.release(sLocationSettingSql, selectSetting);
+            }
+            db.endTransaction();
+        }
+
+        if (changedCount > 0 || rowsDeleted > 0) {
+            // A merge writes many pages in one go.  Fold them back into the database now,
+            // before the notification below sends every reader back to it.
+            WeatherDbHelper.checkpoint(db);
+
+            // Observers of a location's list, and of the weather table as a whole, hear about
+            // a single day too, as they watch their uri's descendants
+            Uri uri;
+            if (rowsDeleted > 0 || changedSettings) {
+                uri = WeatherContract.WeatherEntry.CONTENT_URI;
+            } else if (changedCount == 1) {
+                uri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                        changedSetting, changedDates[0]);
+            } else {
+                uri = WeatherContract.WeatherEntry.buildWeatherLocation(changedSetting);
+            }
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.EXTRA_ROW_COUNT, changedCount);
+        result.putInt(WeatherContract.EXTRA_DELETED_COUNT, rowsDeleted);
+        result.putLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS,
+                Arrays.copyOf(changedLocationIds, changedCount));
+        result.putLongArray(WeatherContract.EXTRA_CHANGED_DATES,
+                Arrays.copyOf(changedDates, changedCount));
+        return result;
+    }
+
+    private static void bindWeatherValues(SQLiteStatement statement, int index,
+                                          ForecastBatch batch, int i) {
+        statement.bindLong(index, batch.getWeatherId(i));
+        statement.bindString(index + 1, batch.getDescription(i));
+        statement.bindDouble(index + 2, batch.getMinTemp(i));
+        statement.bindDouble(index + 3, batch.getMaxTemp(i));
+        statement.bindDouble(index + 4, batch.getHumidity(i));
+        statement.bindDouble(index + 5, batch.getPressure(i));
+        statement.bindDouble(index + 6, batch.getWindSpeed(i));
+        statement.bindDouble(index + 7, batch.getDegrees(i));
+        statement.bindLong(index + 8, batch.getDigest(i));
+    }
+
+    @Override
+    @TargetApi(11)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_MERGE_FORECAST.equals(method)) {
+            return mergeForecasts(ForecastBatch.fromBundle(extras),
+                    arg != null ? Long.parseLong(arg) : -1);
+        } else if (WeatherContract.METHOD_UPSERT_LOCATION.equals(method)) {
+            long locationId = upsertLocation(arg,
+                    extras.getString(WeatherContract.LocationEntry.COLUMN_CITY_NAME),
+                    extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT),
+                    extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.EXTRA_LOCATION_ID, locationId);
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
     @Override
     @TargetApi(11)
     public void shutdown() {
+        mStatements.clear();
         mOpenHelper.close();
         super.shutdown();
     }
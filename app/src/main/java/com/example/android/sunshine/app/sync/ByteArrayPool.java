@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Process-wide pool of the fixed size read buffers used for downloads, so each sync reuses the
+ * buffers of the one before instead of allocating its own.
+ */
+final class ByteArrayPool {
+
+    static final int BUFFER_SIZE = ForecastJsonParser.DEFAULT_BUFFER_SIZE;
+
+    // More buffers than this are only needed while several downloads run at once, and aren't
+    // worth keeping afterwards.
+    private static final int MAX_POOLED = 4;
+
+    private static final byte[][] sPool = new byte[MAX_POOLED][];
+    private static int sPooled;
+
+    private ByteArrayPool() {
+    }
+
+    static byte[] acquire() {
+        synchronized (sPool) {
+            if (sPooled > 0) {
+                byte[] buffer = sPool[--sPooled];
+                sPool[sPooled] = null;
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (sPool) {
+            if (sPooled < MAX_POOLED) {
+                sPool[sPooled++] = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes a sync's changes on to whatever shows them (the widgets, Muzei, the notification and
+ * the wearable) without holding up the sync.
+ *
+ * {@link #dispatch} only records what changed and returns.  Everything dispatched within
+ * {@code windowMillis} of the first request is merged, so a burst of syncs, say from a settings
+ * change, the periodic sync and a push arriving together, wakes each consumer once.  The
+ * consumers then run on a small pool, highest priority first, and how long each took is logged
+ * and kept, so a slow one, like the notification's art download, only delays itself.
+ *
+ * The sync's own wake lock is gone once it returns, so the dispatcher holds a partial wake lock
+ * of its own from the first dispatch in a window until the last consumer it started has run.
+ */
+public class FanOutDispatcher {
+    private final String LOG_TAG = FanOutDispatcher.class.getSimpleName();
+
+    // Threads are only kept around for a dispatch; there are hours between them.
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Something that shows the data a sync changed.
+     */
+    public interface Consumer {
+        /**
+         * Called on one of the dispatcher's threads, never at the same time as itself.
+         *
+         * @param changes The flags of every dispatch merged into this one.
+         */
+        void onChanged(int changes);
+    }
+
+    private class Entry implements Runnable, Comparable<Entry> {
+        final String mName;
+        final int mPriority;
+        final int mChanges;
+        final Consumer mConsumer;
+
+        // guarded by the dispatcher
+        int mQueuedChanges;
+        long mRequestedAt;
+
+        // held while the consumer runs
+        final Object mRunLock = new Object();
+
+        // guarded by the entry
+        int mRuns;
+        long mTotalMillis;
+        long mMaxMillis;
+
+        Entry(String name, int priority, int changes, Consumer consumer) {
+            mName = name;
+            mPriority = priority;
+            mChanges = changes;
+            mConsumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            int changes;
+            long requestedAt;
+            synchronized (FanOutDispatcher.this) {
+                // Anything dispatched from here on queues this entry again
+                changes = mQueuedChanges;
+                requestedAt = mRequestedAt;
+                mQueuedChanges = 0;
+            }
+            long start;
+            long end;
+            synchronized (mRunLock) {
+                start = SystemClock.elapsedRealtime();
+                try {
+                    mConsumer.onChanged(changes);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Error updating " + mName, e);
+                } finally {
+                    // Taken when this entry was queued
+                    mWakeLock.release();
+                }
+                end = SystemClock.elapsedRealtime();
+            }
+            synchronized (this) {
+                mRuns++;
+                mTotalMillis += end - start;
+                mMaxMillis = Math.max(mMaxMillis, end - start);
+            }
+            Log.d(LOG_TAG, "Updated " + mName + " in " + (end - start) + "ms, "
+                    + (end - requestedAt) + "ms after the first change");
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return other.mPriority < mPriority ? -1 : (other.mPriority == mPriority ? 0 : 1);
+        }
+    }
+
+    private final long mWindowMillis;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Taken once for the window and once for each queued entry
+    private final PowerManager.WakeLock mWakeLock;
+    // kept highest priority first
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+    // guarded by this
+    private int mPendingChanges;
+    private long mFirstRequestedAt;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param windowMillis How long to wait after a dispatch for others to merge with it.
+     * @param maxConcurrent How many consumers may run at once.
+     */
+    public FanOutDispatcher(Context context, long windowMillis, int maxConcurrent) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+        mWakeLock.setReferenceCounted(true);
+        mWindowMillis = windowMillis;
+        mExecutor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Adds a consumer.  Register them all before the first dispatch.
+     *
+     * @param priority Consumers with higher priorities are started first.
+     * @param changes The flags the consumer cares about; it's only run for dispatches that
+     *                include at least one of them.
+     */
+    public synchronized void register(String name, int priority, int changes,
+                                      Consumer consumer) {
+        Entry entry = new Entry(name, priority, changes, consumer);
+        int i = 0;
+        while (i < mEntries.size() && mEntries.get(i).mPriority >= priority) {
+            i++;
+        }
+        mEntries.add(i, entry);
+    }
+
+    /**
+     * Schedules the consumers for the changes, merged with any others dispatched within the
+     * window.  Returns straight away, but keeps the device awake until they've run.
+     */
+    public synchronized void dispatch(int changes) {
+        if (changes == 0) {
+            return;
+        }
+        if (mPendingChanges == 0) {
+            mFirstRequestedAt = SystemClock.elapsedRealtime();
+            mWakeLock.acquire();
+            mHandler.postDelayed(mFlush, mWindowMillis);
+        }
+        mPendingChanges |= changes;
+    }
+
+    private synchronized void flush() {
+        int changes = mPendingChanges;
+        mPendingChanges = 0;
+        for (Entry entry : mEntries) {
+            if ((entry.mChanges & changes) == 0) {
+                continue;
+            }
+            // An entry that's still waiting for a thread just picks up the new changes
+            if (entry.mQueuedChanges == 0) {
+                entry.mRequestedAt = mFirstRequestedAt;
+                mWakeLock.acquire();
+                mExecutor.execute(entry);
+            }
+            entry.mQueuedChanges |= changes;
+        }
+        // The entries hold their own now
+        mWakeLock.release();
+    }
+
+    /**
+     * @return whether the dispatcher is keeping the device awake.  For tests.
+     */
+    boolean isHoldingWakeLock() {
+        return mWakeLock.isHeld();
+    }
+
+    /**
+     * @return how many times the consumer has run, its total time and its longest, in
+     *         milliseconds, or null if there's no consumer by that name.
+     */
+    public long[] getLatency(String name) {
+        Entry entry = null;
+        synchronized (this) {
+            for (Entry e : mEntries) {
+                if (e.mName.equals(name)) {
+                    entry = e;
+                }
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            return new long[]{entry.mRuns, entry.mTotalMillis, entry.mMaxMillis};
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers, per location query, the HTTP validators and a hash of the last forecast response
+ * we stored, so that a sync can tell when OWM has nothing new for us.  Also keeps running counts
+ * of cache hits and misses.
+ *
+ * Entries live in their own SharedPreferences file, away from the user's settings.  The counts
+ * are kept in memory as fetches happen and written out once per sync by {@link #saveCounts}.
+ */
+public class ForecastCache {
+
+    static final String PREFS_NAME = "forecast_cache";
+
+    private static final String KEY_ETAG = "etag_";
+    private static final String KEY_LAST_MODIFIED = "last_modified_";
+    private static final String KEY_BODY_HASH = "body_hash_";
+    private static final String KEY_JULIAN_DAY = "julian_day_";
+    private static final String KEY_HITS = "hits";
+    private static final String KEY_MISSES = "misses";
+
+    /**
+     * What we know about the last response stored for a location.
+     */
+    public static class Entry {
+        final String mETag;
+        final String mLastModified;
+        final String mBodyHash;
+        // The day the forecast was stored for.  Stored dates are relative to it, so an entry
+        // recorded on an earlier day is never reused.
+        final int mJulianDay;
+
+        Entry(String eTag, String lastModified, String bodyHash, int julianDay) {
+            mETag = eTag;
+            mLastModified = lastModified;
+            mBodyHash = bodyHash;
+            mJulianDay = julianDay;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    // Counted since the last saveCounts()
+    private final AtomicLong mUnsavedHits = new AtomicLong();
+    private final AtomicLong mUnsavedMisses = new AtomicLong();
+
+    public ForecastCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the entry for the location, or null if we have never stored a forecast for it.
+     */
+    public Entry get(String locationQuery) {
+        String bodyHash = mPrefs.getString(KEY_BODY_HASH + locationQuery, null);
+        if (bodyHash == null) {
+            return null;
+        }
+        return new Entry(mPrefs.getString(KEY_ETAG + locationQuery, null),
+                mPrefs.getString(KEY_LAST_MODIFIED + locationQuery, null),
+                bodyHash,
+                mPrefs.getInt(KEY_JULIAN_DAY + locationQuery, 0));
+    }
+
+    /**
+     * Records the response we just stored for a location.  This should not be called from the
+     * UI thread because it uses commit to write to the shared preferences.
+     */
+    public void put(String locationQuery, Entry entry) {
+        mPrefs.edit()
+                .putString(KEY_ETAG + locationQuery, entry.mETag)
+                .putString(KEY_LAST_MODIFIED + locationQuery, entry.mLastModified)
+                .putString(KEY_BODY_HASH + locationQuery, entry.mBodyHash)
+                .putInt(KEY_JULIAN_DAY + locationQuery, entry.mJulianDay)
+                .commit();
+    }
+
+    public void remove(String locationQuery) {
+        mPrefs.edit()
+                .remove(KEY_ETAG + locationQuery)
+                .remove(KEY_LAST_MODIFIED + locationQuery)
+                .remove(KEY_BODY_HASH + locationQuery)
+                .remove(KEY_JULIAN_DAY + locationQuery)
+                .commit();
+    }
+
+    void recordHit() {
+        mUnsavedHits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        mUnsavedMisses.incrementAndGet();
+    }
+
+    /**
+     * Adds the hits and misses counted since the last call to the stored counts.  Call once a
+     * sync's fetches are done; the write happens in the background.
+     */
+    public synchronized void saveCounts() {
+        long hits = mUnsavedHits.getAndSet(0);
+        long misses = mUnsavedMisses.getAndSet(0);
+        if (hits == 0 && misses == 0) {
+            return;
+        }
+        mPrefs.edit()
+                .putLong(KEY_HITS, mPrefs.getLong(KEY_HITS, 0) + hits)
+                .putLong(KEY_MISSES, mPrefs.getLong(KEY_MISSES, 0) + misses)
+                .apply();
+    }
+
+    /**
+     * @return the number of syncs that found the stored forecast was still current.
+     */
+    public long getHitCount() {
+        return mPrefs.getLong(KEY_HITS, 0) + mUnsavedHits.get();
+    }
+
+    /**
+     * @return the number of syncs that downloaded a forecast that needed storing.
+     */
+    public long getMissCount() {
+        return mPrefs.getLong(KEY_MISSES, 0) + mUnsavedMisses.get();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Downloads and parses a forecast, using conditional requests so that an unchanged forecast
+ * costs as little as possible.
+ *
+ * If we stored a forecast for the location earlier today, the request carries its ETag and
+ * Last-Modified validators.  A 304 means the parse can be skipped entirely.  Servers that ignore
+ * the validators still get caught by comparing a hash of the body, which is computed as the body
+ * streams through the parser.  Either way {@link Result#isChanged()} tells the caller that the
+ * forecast it has is current, so it can skip writing it and telling everyone about it.
+ *
+ * Responses are requested gzip or deflate compressed and inflated on the way into the parser,
+ * through read buffers shared across syncs.  Each {@link Result} reports the bytes that came over
+ * the wire and how long decoding took, so the savings on metered connections can be measured.
+ */
+public class ForecastFetcher {
+    private final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+
+    /**
+     * Outcome of a fetch.  Hand it back to {@link #commit} once the forecast has been stored,
+     * or straight away if it is unchanged.
+     */
+    public static class Result {
+        private final boolean mChanged;
+        private final int mMessageCode;
+        // null if the cached entry still stands, as after a 304
+        private final ForecastCache.Entry mEntry;
+        private final long mWireBytes;
+        private final long mBodyBytes;
+        private final long mDecodeNanos;
+
+        Result(boolean changed, int messageCode, ForecastCache.Entry entry,
+               long wireBytes, long bodyBytes, long decodeNanos) {
+            mChanged = changed;
+            mMessageCode = messageCode;
+            mEntry = entry;
+            mWireBytes = wireBytes;
+            mBodyBytes = bodyBytes;
+            mDecodeNanos = decodeNanos;
+        }
+
+        /**
+         * @return false if the forecast we stored last time is still current.  The callback has
+         * not necessarily been called in that case.
+         */
+        public boolean isChanged() {
+            return mChanged;
+        }
+
+        /**
+         * @return the message code from the response body, as returned by
+         * {@link ForecastJsonParser#parse}.
+         */
+        public int getMessageCode() {
+            return mMessageCode;
+        }
+
+        /**
+         * @return the size of the response body as sent, before decompression.
+         */
+        public long getWireBytes() {
+            return mWireBytes;
+        }
+
+        /**
+         * @return the size of the decompressed response body.
+         */
+        public long getBodyBytes() {
+            return mBodyBytes;
+        }
+
+        /**
+         * @return the time spent reading, inflating and parsing the response body.
+         */
+        public long getDecodeNanos() {
+            return mDecodeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "changed=" + mChanged + " wireBytes=" + mWireBytes
+                    + " bodyBytes=" + mBodyBytes + " decodeMs=" + mDecodeNanos / 1000000;
+        }
+    }
+
+    private final ForecastCache mCache;
+
+    public ForecastFetcher(ForecastCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Fetches the forecast at the url and streams it into the callback.
+     *
+     * @param locationQuery The location the forecast is for, used as the cache key.
+     * @param julianDay The day the forecast will be stored for.
+     * @param useCache false to ignore what was stored before, e.g. when the stored forecast is
+     *                 for a location we have just switched back to and must be pushed out again.
+     */
+    public Result fetch(URL url, String locationQuery, int julianDay, boolean useCache,
+                        ForecastJsonParser.Callback callback) throws IOException {
+        ForecastCache.Entry cached = useCache ? mCache.get(locationQuery) : null;
+        if (cached != null && cached.mJulianDay != julianDay) {
+            cached = null;
+        }
+
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        byte[] buffer = null;
+        try {
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            // Asking for an encoding ourselves turns off HttpURLConnection's transparent gzip
+            // handling, which lets us count the compressed bytes and choose the buffers.
+            urlConnection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+            if (cached != null) {
+                if (cached.mETag != null) {
+                    urlConnection.setRequestProperty("If-None-Match", cached.mETag);
+                }
+                if (cached.mLastModified != null) {
+                    urlConnection.setRequestProperty("If-Modified-Since", cached.mLastModified);
+                }
+            }
+            urlConnection.connect();
+
+            if (cached != null
+                    && urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(LOG_TAG, "Forecast for " + locationQuery + " not modified");
+                mCache.recordHit();
+                return new Result(false, HttpURLConnection.HTTP_OK, null, 0, 0, 0);
+            }
+
+            long decodeStart = System.nanoTime();
+            CountingInputStream wireStream =
+                    new CountingInputStream(urlConnection.getInputStream());
+            inputStream = wireStream;
+            String contentEncoding = urlConnection.getContentEncoding();
+            if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+                inputStream = new GZIPInputStream(inputStream, ByteArrayPool.BUFFER_SIZE);
+            } else if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+                inputStream = new InflaterInputStream(inputStream);
+            }
+
+            // Hash the decoded body as the parser pulls it through, so the hash doesn't depend on
+            // how the server chose to compress it
+            MessageDigest digest = newDigest();
+            CountingInputStream bodyStream =
+                    new CountingInputStream(new DigestInputStream(inputStream, digest));
+            inputStream = bodyStream;
+            buffer = ByteArrayPool.acquire();
+            int messageCode = new ForecastJsonParser(buffer).parse(inputStream, callback);
+            long decodeNanos = System.nanoTime() - decodeStart;
+
+            ForecastCache.Entry entry = new ForecastCache.Entry(
+                    urlConnection.getHeaderField("ETag"),
+                    urlConnection.getHeaderField("Last-Modified"),
+                    toHex(digest.digest()),
+                    julianDay);
+            if (cached != null && cached.mBodyHash.equals(entry.mBodyHash)) {
+                Log.d(LOG_TAG, "Forecast for " + locationQuery + " unchanged");
+                mCache.recordHit();
+                return new Result(false, messageCode, entry,
+                        wireStream.getCount(), bodyStream.getCount(), decodeNanos);
+            }
+            mCache.recordMiss();
+            return new Result(true, messageCode, entry,
+                    wireStream.getCount(), bodyStream.getCount(), decodeNanos);
+        } finally {
+            ByteArrayPool.release(buffer);
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Remembers the validators of a fetched forecast once it has been stored successfully.
+     * An unchanged forecast should be committed too: a server that ignores the validators can
+     * still send new ones with the same body, and they'd otherwise never be sent back.
+     */
+    public void commit(String locationQuery, Result result) {
+        if (result.mEntry != null) {
+            mCache.put(locationQuery, result.mEntry);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device ships SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+
+/**
+ * Pull parser for the OpenWeatherMap daily forecast response.
+ *
+ * Reads the UTF-8 bytes of the response straight off the stream and hands each day of the
+ * forecast to a {@link Callback} as soon as its closing brace is read, so neither the raw
+ * response String nor a JSONObject tree is ever built. Only the fields Sunshine stores are
+ * decoded; everything else is skipped in place.
+ *
+ * This class has no Android dependencies so that it can be exercised on a plain JVM.
+ * Instances are not thread safe, but may be reused for any number of sequential parses.
+ */
+public class ForecastJsonParser {
+
+    /**
+     * Receives the values pulled out of the response, in document order.
+     */
+    public interface Callback {
+        void onCity(String cityName, double latitude, double longitude);
+
+        void onDay(int index, double pressure, int humidity, double windSpeed,
+                   double windDirection, String description, int weatherId,
+                   double high, double low);
+    }
+
+    /**
+     * Thrown when the response isn't the JSON document we expect.
+     */
+    public static class MalformedForecastException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedForecastException(String message) {
+            super(message);
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    // These are the names of the JSON objects that need to be extracted.
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+    private static final String OWM_LIST = "list";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // Bits recording which of the required per-day fields have been seen
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_DESCRIPTION = 1 << 4;
+    private static final int FIELD_WEATHER_ID = 1 << 5;
+    private static final int FIELD_MAX = 1 << 6;
+    private static final int FIELD_MIN = 1 << 7;
+    private static final int ALL_DAY_FIELDS = (1 << 8) - 1;
+
+    // Powers of ten that are exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final byte[] mBuffer;
+    private InputStream mIn;
+    private int mPos;
+    private int mLimit;
+
+    // Scratch space for the bytes of the string or number currently being read
+    private byte[] mToken = new byte[64];
+    private int mTokenLength;
+
+    // Values of the day currently being read
+    private int mDayFields;
+    private double mPressure;
+    private int mHumidity;
+    private double mWindSpeed;
+    private double mWindDirection;
+    private String mDescription;
+    private int mWeatherId;
+    private double mHigh;
+    private double mLow;
+
+    public ForecastJsonParser() {
+        this(new byte[DEFAULT_BUFFER_SIZE]);
+    }
+
+    /**
+     * @param buffer Read buffer to use. The parser takes ownership of it until the parser is
+     *               no longer used.
+     */
+    public ForecastJsonParser(byte[] buffer) {
+        if (buffer.length == 0) {
+            throw new IllegalArgumentException("Buffer must not be empty");
+        }
+        mBuffer = buffer;
+    }
+
+    /**
+     * Parses a complete forecast response. The stream is read to the end of the document but is
+     * not closed.
+     *
+     * @return The message code the server put in the response, or
+     * {@link HttpURLConnection#HTTP_OK} if it didn't send one.
+     * @throws EOFException if the stream is empty.
+     * @throws MalformedForecastException if the stream doesn't hold a forecast document.
+     */
+    public int parse(InputStream in, Callback callback) throws IOException {
+        mIn = in;
+        mPos = 0;
+        mLimit = 0;
+        try {
+            if (peek() == -1) {
+                throw new EOFException("Empty forecast response");
+            }
+            return readRoot(callback);
+        } finally {
+            mIn = null;
+        }
+    }
+
+    private int readRoot(Callback callback) throws IOException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        beginObject();
+        for (boolean first = true; nextMember(first); first = false) {
+            if (tokenEquals(OWM_MESSAGE_CODE)) {
+                messageCode = (int) readDouble();
+            } else if (tokenEquals(OWM_CITY)) {
+                readCity(callback);
+            } else if (tokenEquals(OWM_LIST)) {
+                readList(callback);
+            } else {
+                skipValue();
+            }
+        }
+        return messageCode;
+    }
+
+    private void readCity(Callback callback) throws IOException {
+        String cityName = null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        beginObject();
+        for (boolean first = true; nextMember(first); first = false) {
+            if (tokenEquals(OWM_CITY_NAME)) {
+                cityName = readString();
+            } else if (tokenEquals(OWM_COORD)) {
+                beginObject();
+                for (boolean firstCoord = true; nextMember(firstCoord); firstCoord = false) {
+                    if (tokenEquals(OWM_LATITUDE)) {
+                        latitude = readDouble();
+                    } else if (tokenEquals(OWM_LONGITUDE)) {
+                        longitude = readDouble();
+                    } else {
+                        skipValue();
+                    }
+                }
+            } else {
+                skipValue();
+            }
+        }
+        if (cityName == null || Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            throw syntaxError("Incomplete city");
+        }
+        callback.onCity(cityName, latitude, longitude);
+    }
+
+    private void readList(Callback callback) throws IOException {
+        beginArray();
+        int index = 0;
+        for (boolean first = true; nextElement(first); first = false) {
+            readDay();
+            callback.onDay(index++, mPressure, mHumidity, mWindSpeed, mWindDirection,
+                    mDescription, mWeatherId, mHigh, mLow);
+        }
+    }
+
+    private void readDay() throws IOException {
+        mDayFields = 0;
+        mDescription = null;
+        beginObject();
+        for (boolean first = true; nextMember(first); first = false) {
+            if (tokenEquals(OWM_PRESSURE)) {
+                mPressure = readDouble();
+                mDayFields |= FIELD_PRESSURE;
+            } else if (tokenEquals(OWM_HUMIDITY)) {
+                mHumidity = (int) readDouble();
+                mDayFields |= FIELD_HUMIDITY;
+            } else if (tokenEquals(OWM_WINDSPEED)) {
+                mWindSpeed = readDouble();
+                mDayFields |= FIELD_WINDSPEED;
+            } else if (tokenEquals(OWM_WIND_DIRECTION)) {
+                mWindDirection = readDouble();
+                mDayFields |= FIELD_WIND_DIRECTION;
+            } else if (tokenEquals(OWM_TEMPERATURE)) {
+                readTemperature();
+            } else if (tokenEquals(OWM_WEATHER)) {
+                readWeather();
+            } else {
+                skipValue();
+            }
+        }
+        if (mDayFields != ALL_DAY_FIELDS) {
+            throw syntaxError("Incomplete day");
+        }
+    }
+
+    private void readTemperature() throws IOException {
+        beginObject();
+        for (boolean first = true; nextMember(first); first = false) {
+            if (tokenEquals(OWM_MAX)) {
+                mHigh = readDouble();
+                mDayFields |= FIELD_MAX;
+            } else if (tokenEquals(OWM_MIN)) {
+                mLow = readDouble();
+                mDayFields |= FIELD_MIN;
+            } else {
+                skipValue();
+            }
+        }
+    }
+
+    private void readWeather() throws IOException {
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.  Anything after it is ignored.
+        beginArray();
+        for (boolean first = true; nextElement(first); first = false) {
+            if (!first) {
+                skipValue();
+                continue;
+            }
+            beginObject();
+            for (boolean firstMember = true; nextMember(firstMember); firstMember = false) {
+                if (tokenEquals(OWM_DESCRIPTION)) {
+                    mDescription = readString();
+                    mDayFields |= FIELD_DESCRIPTION;
+                } else if (tokenEquals(OWM_WEATHER_ID)) {
+                    mWeatherId = (int) readDouble();
+                    mDayFields |= FIELD_WEATHER_ID;
+                } else {
+                    skipValue();
+                }
+            }
+        }
+    }
+
+    // ---- Structural tokens ----
+
+    private void beginObject() throws IOException {
+        expect('{');
+    }
+
+    private void beginArray() throws IOException {
+        expect('[');
+    }
+
+    /**
+     * Advances to the next member of the current object and reads its name into the token
+     * buffer.
+     *
+     * @return false once the closing brace has been consumed.
+     */
+    private boolean nextMember(boolean first) throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return false;
+        }
+        if (!first) {
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+        }
+        if (c != '"') {
+            throw syntaxError("Expected name");
+        }
+        readStringToken();
+        expect(':');
+        return true;
+    }
+
+    /**
+     * Advances to the next element of the current array, leaving its first byte unconsumed.
+     *
+     * @return false once the closing bracket has been consumed.
+     */
+    private boolean nextElement(boolean first) throws IOException {
+        int c = peek();
+        if (c == ']') {
+            mPos++;
+            return false;
+        }
+        if (!first) {
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            mPos++;
+        }
+        return true;
+    }
+
+    private void expect(char expected) throws IOException {
+        if (nextNonWhitespace() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    private boolean tokenEquals(String ascii) {
+        int length = ascii.length();
+        if (length != mTokenLength) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mToken[i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---- Values ----
+
+    private String readString() throws IOException {
+        if (nextNonWhitespace() != '"') {
+            throw syntaxError("Expected string");
+        }
+        readStringToken();
+        return new String(mToken, 0, mTokenLength, UTF_8);
+    }
+
+    /**
+     * Reads a number. OWM sends some numeric values, such as the message code, as strings, so
+     * quoted numbers are accepted too.
+     */
+    private double readDouble() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            mPos++;
+            readStringToken();
+        } else {
+            readNumberToken();
+        }
+        return parseToken();
+    }
+
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int c = nextNonWhitespace();
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    // At depth 0 this closes the enclosing object, which has no value to skip
+                    if (depth == 0) {
+                        throw syntaxError("Expected value");
+                    }
+                    depth--;
+                    break;
+                case ',':
+                case ':':
+                    if (depth == 0) {
+                        throw syntaxError("Expected value");
+                    }
+                    break;
+                case '"':
+                    readStringToken();
+                    break;
+                case -1:
+                    throw syntaxError("Unexpected end of input");
+                default:
+                    // A number or one of the literals true, false and null
+                    mPos--;
+                    readNumberToken();
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been consumed, leaving its unescaped
+     * UTF-8 bytes in the token buffer.
+     */
+    private void readStringToken() throws IOException {
+        mTokenLength = 0;
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            } else {
+                appendToken(c);
+            }
+        }
+    }
+
+    private void readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case 'b':
+                appendToken('\b');
+                break;
+            case 'f':
+                appendToken('\f');
+                break;
+            case 'n':
+                appendToken('\n');
+                break;
+            case 'r':
+                appendToken('\r');
+                break;
+            case 't':
+                appendToken('\t');
+                break;
+            case 'u':
+                int codePoint = readHexQuad();
+                if (codePoint >= 0xd800 && codePoint <= 0xdbff) {
+                    // A high surrogate must be followed by an escaped low surrogate
+                    if (read() != '\\' || read() != 'u') {
+                        throw syntaxError("Invalid escape");
+                    }
+                    int low = readHexQuad();
+                    if (low < 0xdc00 || low > 0xdfff) {
+                        throw syntaxError("Invalid escape");
+                    }
+                    codePoint = 0x10000 + ((codePoint - 0xd800) << 10) + (low - 0xdc00);
+                }
+                appendCodePoint(codePoint);
+                break;
+            case -1:
+                throw syntaxError("Unterminated string");
+            default:
+                // \" \\ \/ stand for themselves
+                appendToken(c);
+                break;
+        }
+    }
+
+    private int readHexQuad() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+                throw syntaxError("Invalid escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Appends a code point as UTF-8 so that the token buffer stays in a single encoding.
+     */
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            appendToken(codePoint);
+        } else if (codePoint < 0x800) {
+            appendToken(0xc0 | (codePoint >> 6));
+            appendToken(0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            appendToken(0xe0 | (codePoint >> 12));
+            appendToken(0x80 | ((codePoint >> 6) & 0x3f));
+            appendToken(0x80 | (codePoint & 0x3f));
+        } else {
+            appendToken(0xf0 | (codePoint >> 18));
+            appendToken(0x80 | ((codePoint >> 12) & 0x3f));
+            appendToken(0x80 | ((codePoint >> 6) & 0x3f));
+            appendToken(0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    private void readNumberToken() throws IOException {
+        mTokenLength = 0;
+        while (true) {
+            int c = peek(false);
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || c == '-' || c == '+' || c == '.') {
+                appendToken(c);
+                mPos++;
+            } else {
+                break;
+            }
+        }
+        if (mTokenLength == 0) {
+            throw syntaxError("Expected value");
+        }
+    }
+
+    /**
+     * Converts the number in the token buffer to a double without creating a String. Values
+     * with up to 15 significant digits and a small exponent, which covers everything OWM sends,
+     * are converted exactly; anything else falls back to {@link Double#parseDouble}.
+     */
+    private double parseToken() throws MalformedForecastException {
+        byte[] token = mToken;
+        int length = mTokenLength;
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (token[i] == '-' || token[i] == '+')) {
+            negative = token[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        for (; i < length && token[i] >= '0' && token[i] <= '9'; i++) {
+            sawDigit = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (token[i] - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+        }
+        if (i < length && token[i] == '.') {
+            for (i++; i < length && token[i] >= '0' && token[i] <= '9'; i++) {
+                sawDigit = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (token[i] - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+            }
+        }
+        if (i < length && (token[i] == 'e' || token[i] == 'E')) {
+            return parseTokenSlowly();
+        }
+        if (!sawDigit || i != length) {
+            throw syntaxError("Invalid number");
+        }
+        if (mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0
+                    ? mantissa / POWERS_OF_TEN[-exponent]
+                    : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        return parseTokenSlowly();
+    }
+
+    private double parseTokenSlowly() throws MalformedForecastException {
+        try {
+            return Double.parseDouble(new String(mToken, 0, mTokenLength, US_ASCII));
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number");
+        }
+    }
+
+    private void appendToken(int b) {
+        if (mTokenLength == mToken.length) {
+            byte[] grown = new byte[mToken.length * 2];
+            System.arraycopy(mToken, 0, grown, 0, mTokenLength);
+            mToken = grown;
+        }
+        mToken[mTokenLength++] = (byte) b;
+    }
+
+    // ---- Input ----
+
+    private int read() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    private int peek() throws IOException {
+        return peek(true);
+    }
+
+    /**
+     * Returns the next byte without consuming it, optionally consuming any whitespace before it.
+     */
+    private int peek(boolean skipWhitespace) throws IOException {
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                return -1;
+            }
+            int c = mBuffer[mPos] & 0xff;
+            if (skipWhitespace && (c == ' ' || c == '\n' || c == '\r' || c == '\t')) {
+                mPos++;
+            } else {
+                return c;
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c = peek();
+        if (c != -1) {
+            mPos++;
+        }
+        return c;
+    }
+
+    private boolean fill() throws IOException {
+        int count = mIn.read(mBuffer, 0, mBuffer.length);
+        if (count <= 0) {
+            mPos = 0;
+            mLimit = 0;
+            return false;
+        }
+        mPos = 0;
+        mLimit = count;
+        return true;
+    }
+
+    private MalformedForecastException syntaxError(String message) {
+        return new MalformedForecastException(message);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the forecasts for several locations at once, so a sync that covers many locations
+ * keeps the radio awake for about as long as the slowest request rather than for all of them
+ * end to end.
+ *
+ * At most {@code maxConcurrent} requests run at a time, and at most {@code maxPerHost} of them
+ * against any one host.  Each location succeeds or fails on its own: a failure is recorded on
+ * its {@link Request} and the others carry on.
+ */
+public class ParallelForecastFetcher {
+    private final String LOG_TAG = ParallelForecastFetcher.class.getSimpleName();
+
+    // Threads are only kept around for a sync; there are hours between them.
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * A forecast to fetch, and once {@link #fetchAll} returns, what became of it.
+     */
+    public static class Request {
+        final String mLocationQuery;
+        final URL mUrl;
+        final boolean mUseCache;
+        final ForecastJsonParser.Callback mCallback;
+
+        volatile ForecastFetcher.Result mResult;
+        volatile Exception mError;
+
+        /**
+         * @param useCache Passed on to {@link ForecastFetcher#fetch}.
+         * @param callback Receives this location's forecast. It's called on a worker thread.
+         */
+        public Request(String locationQuery, URL url, boolean useCache,
+                       ForecastJsonParser.Callback callback) {
+            mLocationQuery = locationQuery;
+            mUrl = url;
+            mUseCache = useCache;
+            mCallback = callback;
+        }
+
+        public String getLocationQuery() {
+            return mLocationQuery;
+        }
+
+        /**
+         * @return the result of the fetch, or null if it failed.
+         */
+        public ForecastFetcher.Result getResult() {
+            return mResult;
+        }
+
+        /**
+         * @return why the fetch failed, or null if it succeeded.
+         */
+        public Exception getError() {
+            return mError;
+        }
+    }
+
+    private final ForecastFetcher mFetcher;
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxPerHost;
+    private final Map<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+
+    public ParallelForecastFetcher(ForecastFetcher fetcher, int maxConcurrent, int maxPerHost) {
+        mFetcher = fetcher;
+        mMaxPerHost = maxPerHost;
+        mExecutor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Fetches every request, blocking until all of them have finished.  A single request is run
+     * on the calling thread.
+     *
+     * @param julianDay Passed on to {@link ForecastFetcher#fetch}.
+     */
+    public void fetchAll(List<Request> requests, final int julianDay) {
+        if (requests.size() == 1) {
+            fetch(requests.get(0), julianDay);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(requests.size());
+        for (final Request request : requests) {
+            futures.add(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(request, julianDay);
+                }
+            }));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                // The sync was cancelled; give up on whatever hasn't finished
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+                for (Request request : requests) {
+                    if (request.mResult == null && request.mError == null) {
+                        request.mError = e;
+                    }
+                }
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // fetch() catches everything itself, so this shouldn't happen
+                requests.get(i).mError = e;
+            }
+        }
+    }
+
+    private void fetch(Request request, int julianDay) {
+        Semaphore permits = getHostPermits(request.mUrl.getHost());
+        try {
+            permits.acquire();
+            try {
+                request.mResult = mFetcher.fetch(request.mUrl, request.mLocationQuery, julianDay,
+                        request.mUseCache, request.mCallback);
+            } finally {
+                permits.release();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error fetching forecast for " + request.mLocationQuery, e);
+            request.mError = e;
+        }
+    }
+
+    private Semaphore getHostPermits(String host) {
+        synchronized (mHostPermits) {
+            Semaphore permits = mHostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(mMaxPerHost);
+                mHostPermits.put(host, permits);
+            }
+            return permits;
+        }
+    }
+}
@@ -20,7 +20,6 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -35,39 +34,33 @@ import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.ForecastBatch;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
+import com.example.android.sunshine.shared.ForecastPayload;
 import com.google.android.gms.wearable.Asset;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
+import com.google.android.gms.wearable.DataMap;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
-public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
-        GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener {
+public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
+    // Whether today's weather changed, in an ACTION_DATA_UPDATED broadcast.  When it's false
+    // only later days did.
+    public static final String EXTRA_TODAY_CHANGED =
+            "com.example.android.sunshine.app.EXTRA_TODAY_CHANGED";
     // Interval at which to sync with the weather, in seconds.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
@@ -75,30 +68,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
-    //Google API Client to send data to wearables
-    private GoogleApiClient mGoogleApiClient;
-
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    //Projection for Wearable
-    private static final String[] WEARABLE_WEATHER_PROJECTION = new String[] {
-
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -111,22 +80,84 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     public static final int LOCATION_STATUS_INVALID = 4;
 
     private static final String TEMP_PATH = "/temp";
-    private static final String HIGH_TEMP_KEY = "hightemp";
-    private static final String LOW_TEMP_KEY = "lowtemp";
+    private static final String FORECAST_KEY = "forecast";
     private static final String IMAGE_KEY = "forecast_icon";
 
-    private boolean mUpdateWearable;
     private boolean mIsSameLocation;
 
+    // Bounds for fetching several locations at once.  Every location is served by the same OWM
+    // host, so the per host limit is the one that normally applies.
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+    private static final int MAX_FETCHES_PER_HOST = 2;
+
+    // What a sync changed, for the fan out to the widgets, Muzei, the notification and the
+    // wearable.  A change to today is also a change to the forecast.
+    private static final int CHANGED_TODAY = 1;
+    private static final int CHANGED_FORECAST = 2;
+    // Nothing changed, but the preferred location's forecast was synced and is still current.
+    // Only the wearable cares, as it shows a forecast it hasn't heard about in a while as stale.
+    private static final int SYNCED_UNCHANGED = 4;
+
+    // Syncs finishing within this long of each other update everything once.  A settings
+    // change, the periodic sync and a push can all land within a few seconds.
+    private static final long FAN_OUT_WINDOW_MILLIS = 5000;
+    private static final int MAX_CONCURRENT_FAN_OUT = 2;
+
+    private final ForecastCache mForecastCache;
+    private final ForecastFetcher mForecastFetcher;
+    private final ParallelForecastFetcher mParallelFetcher;
+    private final FanOutDispatcher mFanOut;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mForecastCache = new ForecastCache(context);
+        mForecastFetcher = new ForecastFetcher(mForecastCache);
+        mParallelFetcher = new ParallelForecastFetcher(mForecastFetcher,
+                MAX_CONCURRENT_FETCHES, MAX_FETCHES_PER_HOST);
+        mFanOut = createFanOut(context);
+    }
+
+    // The widgets and Muzei only send a broadcast or start a service, so they go first; the
+    // wearable has to connect and the notification may download its art
+    private FanOutDispatcher createFanOut(Context context) {
+        FanOutDispatcher fanOut = new FanOutDispatcher(context, FAN_OUT_WINDOW_MILLIS,
+                MAX_CONCURRENT_FAN_OUT);
+        fanOut.register("widgets", 3, CHANGED_FORECAST, new FanOutDispatcher.Consumer() {
+            @Override
+            public void onChanged(int changes) {
+                updateWidgets((changes & CHANGED_TODAY) != 0);
+            }
+        });
+        fanOut.register("muzei", 2, CHANGED_TODAY, new FanOutDispatcher.Consumer() {
+            @Override
+            public void onChanged(int changes) {
+                updateMuzei();
+            }
+        });
+        // The wearable gets the whole forecast
+        fanOut.register("wearable", 1, CHANGED_FORECAST | SYNCED_UNCHANGED,
+                new FanOutDispatcher.Consumer() {
+                    @Override
+                    public void onChanged(int changes) {
+                        Log.e(LOG_TAG, "Try and update Wearable");
+                        updateWearable();
+                    }
+                });
+        fanOut.register("notification", 0, CHANGED_TODAY, new FanOutDispatcher.Consumer() {
+            @Override
+            public void onChanged(int changes) {
+                notifyWeather();
+            }
+        });
+        return fanOut;
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
 
-        String locationQuery = Utility.getPreferredLocation(getContext());
-        Log.e(LOG_TAG, "Starting sync at location " + locationQuery);
+        // The preferred location always comes first; it's the one everything else shows
+        List<String> locations = Utility.getSyncLocations(getContext());
+        Log.e(LOG_TAG, "Starting sync at locations " + locations);
         Log.e(LOG_TAG,"Location Status = " + Utility.getLocationStatus(getContext()));
 
         //If we hae an Unknown Location status, we have changed location. We want to
@@ -138,294 +169,328 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         else {
             mIsSameLocation = true;
         }
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
 
-        //Reset Wearable flag
-        mUpdateWearable = false;
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        Time dayTime = new Time();
+        dayTime.setToNow();
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                Log.e(LOG_TAG,"Nothing in input stream, return");
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+        // now we work exclusively in UTC
+        dayTime = new Time();
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+        // One request per location, each parsing straight off its own input stream.  After a
+        // location change the cached forecast of the preferred location is ignored, as
+        // everything must be updated regardless.
+        List<ParallelForecastFetcher.Request> requests =
+                new ArrayList<ParallelForecastFetcher.Request>(locations.size());
+        List<ForecastCollector> collectors = new ArrayList<ForecastCollector>(locations.size());
+        try {
+            for (int i = 0; i < locations.size(); i++) {
+                boolean preferred = i == 0;
+                ForecastCollector collector = new ForecastCollector(julianStartDay, preferred);
+                collectors.add(collector);
+                requests.add(new ParallelForecastFetcher.Request(locations.get(i),
+                        buildForecastUrl(locations.get(i)), !preferred || mIsSameLocation,
+                        collector));
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
             setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
-            }
+            return;
         }
-        return;
-    }
-
-    /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
-     */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
-
-        double high;
-        double low;
+        mParallelFetcher.fetchAll(requests, julianStartDay);
+        // The fetches counted their hits and misses in memory; write them out once
+        mForecastCache.saveCounts();
+
+        // Gather up whatever changed.  A location that failed is left as it was without holding
+        // up the others.
+        List<ForecastBatch> batches = new ArrayList<ForecastBatch>(requests.size());
+        List<ParallelForecastFetcher.Request> stored =
+                new ArrayList<ParallelForecastFetcher.Request>(requests.size());
+        ForecastBatch preferredBatch = null;
+        // Whether the preferred location's forecast is known to be current, changed or not
+        boolean preferredSynced = false;
+        for (int i = 0; i < requests.size(); i++) {
+            ParallelForecastFetcher.Request request = requests.get(i);
+            String locationQuery = request.getLocationQuery();
+            boolean preferred = i == 0;
+            try {
+                if (request.getError() != null) {
+                    throw request.getError();
+                }
+                ForecastFetcher.Result result = request.getResult();
+                Log.d(LOG_TAG, "Fetched forecast for " + locationQuery + ": " + result);
+
+                if (!result.isChanged()) {
+                    // What we stored last time is still current, so there is nothing to write
+                    // and nobody to tell, but the response may have brought new validators
+                    mForecastFetcher.commit(locationQuery, result);
+                    if (preferred) {
+                        setLocationStatus(getContext(), LOCATION_STATUS_OK);
+                        preferredSynced = true;
+                    }
+                    continue;
+                }
 
-        Log.i(LOG_TAG,"getWeatherFromJSON()");
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+                ForecastBatch batch = getBatchFromCollector(result.getMessageCode(),
+                        collectors.get(i), locationQuery);
+                if (batch != null) {
+                    batches.add(batch);
+                    stored.add(request);
+                    if (preferred) {
+                        preferredBatch = batch;
+                        preferredSynced = true;
+                    }
+                }
+            } catch (ForecastJsonParser.MalformedForecastException e) {
+                Log.e(LOG_TAG, "Forecast for " + locationQuery + ": " + e.getMessage(), e);
+                syncResult.stats.numParseExceptions++;
+                if (preferred) {
+                    setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Error fetching forecast for " + locationQuery, e);
+                // If the code didn't successfully get the weather data, or the stream was empty,
+                // there's no point in attempting to parse it.
+                syncResult.stats.numIoExceptions++;
+                if (preferred) {
+                    setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
                 }
             }
+        }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
+        if (batches.isEmpty()) {
+            Log.d(LOG_TAG, "Sync Complete. No forecasts changed");
+            if (preferredSynced) {
+                mFanOut.dispatch(SYNCED_UNCHANGED);
+            }
+            return;
+        }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+        // What the preferred location's consumers were last given, to compare the new forecast
+        // with.  This has to be read before the merge, in case it comes from the database.
+        ForecastSnapshot previous = preferredBatch != null && mIsSameLocation
+                ? ForecastSnapshot.get(getContext(), locations.get(0)) : null;
 
+        // merge into the database, all locations in one transaction, deleting old data in the
+        // same one so we don't build up an endless history
+        long[] changedLocationIds = mergeForecasts(syncResult,
+                dayTime.setJulianDay(julianStartDay - 1),
+                batches.toArray(new ForecastBatch[batches.size()]));
+        int written = changedLocationIds.length;
 
+        for (ParallelForecastFetcher.Request request : stored) {
+            mForecastFetcher.commit(request.getLocationQuery(), request.getResult());
+        }
+        syncResult.stats.numUpdates += written;
+        Log.d(LOG_TAG, "Sync Complete. " + written + " days written for " + stored.size()
+                + " locations");
 
-                String description;
-                int weatherId;
+        if (preferredBatch == null) {
+            if (preferredSynced) {
+                mFanOut.dispatch(SYNCED_UNCHANGED);
+            }
+            return;
+        }
+        setLocationStatus(getContext(), LOCATION_STATUS_OK);
+
+        // Widgets, Muzei, the notification and the wearable only show the preferred location,
+        // and only need telling if one of its days actually changed, or if we've just switched
+        // to it
+        if (mIsSameLocation && !contains(changedLocationIds, preferredBatch.getLocationId())) {
+            mFanOut.dispatch(SYNCED_UNCHANGED);
+            return;
+        }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+        // Everything below reads the preferred location's forecast from here rather than
+        // querying the provider for it again
+        ForecastSnapshot snapshot = ForecastSnapshot.fromBatch(getContext(), locations.get(0),
+                preferredBatch);
+        ForecastSnapshot.publish(getContext(), snapshot);
+
+        // Each of them is only woken for the days it shows: the detail widget for the whole
+        // forecast from today on, the rest for today alone.  A change to a later day, or to
+        // yesterday's row that was just pruned, leaves them be.
+        long now = System.currentTimeMillis();
+        boolean todayChanged = !snapshot.hasSameDays(previous, now, 1);
+        boolean forecastChanged = todayChanged
+                || !snapshot.hasSameDays(previous, now, Integer.MAX_VALUE);
+        Log.d(LOG_TAG, "Preferred forecast changed: today " + todayChanged + ", forecast "
+                + forecastChanged);
+        // They run on the fan out's own threads, so a slow one doesn't hold up the sync
+        mFanOut.dispatch((todayChanged ? CHANGED_TODAY : 0)
+                | (forecastChanged ? CHANGED_FORECAST : SYNCED_UNCHANGED));
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    private static boolean contains(long[] values, long value) {
+        for (long v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+    private static URL buildForecastUrl(String locationQuery) throws MalformedURLException {
+        String format = "json";
+        String units = "metric";
+        int numDays = 14;
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String FORECAST_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/forecast/daily?";
+        final String QUERY_PARAM = "q";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+        return new URL(builtUri.toString());
+    }
 
-                //See if today's temperatures have changed and set flag to update wearable
-                if(i == 0) {
-                    setUpdateWearableFlag(high, low);
+    /**
+     * Takes the forecast that {@link ForecastJsonParser} pulled out of the JSON response and ties
+     * it to its row in the location table, ready to be stored.
+     *
+     * @return the forecast, or null if the server had none for the location.
+     */
+    private ForecastBatch getBatchFromCollector(int messageCode, ForecastCollector collector,
+                                                String locationSetting)
+            throws IOException {
+
+        Log.i(LOG_TAG,"getBatchFromCollector() " + locationSetting);
+
+        // do we have an error?
+        switch (messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                if (collector.mPreferred) {
+                    setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
                 }
+                Log.w(LOG_TAG, "Location " + locationSetting + " not found");
+                return null;
+            default:
+                throw new IOException("Message code " + messageCode + " for " + locationSetting);
+        }
 
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        if (collector.mCityName == null) {
+            throw new ForecastJsonParser.MalformedForecastException("Missing city");
+        }
 
-                cVVector.add(weatherValues);
+        long locationId = addLocation(locationSetting, collector.mCityName,
+                collector.mCityLatitude, collector.mCityLongitude);
 
+        ForecastBatch batch = collector.mBatch;
+        batch.setLocationId(locationId);
+        return batch;
+    }
 
+    /**
+     * Merges the forecasts into the database through the provider, which binds the primitive
+     * columns straight to compiled statements, only writes the days that changed, and deletes
+     * the days up to pruneDate, all in one transaction with one change notification.
+     * ContentResolver.call only exists from Honeycomb on, so older devices fall back to a
+     * regular bulkInsert, which rewrites every day, followed by a separate delete.
+     *
+     * @return the location id of every day that was written.
+     */
+    private long[] mergeForecasts(SyncResult syncResult, long pruneDate,
+                                  ForecastBatch... batches) {
+        ContentResolver resolver = getContext().getContentResolver();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Bundle result = resolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.METHOD_MERGE_FORECAST, Long.toString(pruneDate),
+                    ForecastBatch.toBundle(batches));
+            syncResult.stats.numDeletes += result.getInt(WeatherContract.EXTRA_DELETED_COUNT);
+            return result.getLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS);
+        } else {
+            List<ContentValues> values = new ArrayList<ContentValues>();
+            for (ForecastBatch batch : batches) {
+                Collections.addAll(values, batch.toContentValues());
             }
-
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[]{Long.toString(dayTime.setJulianDay(julianStartDay - 1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-                //Update wearable if today's weather has changed
-                if(mUpdateWearable) {
-                    Log.e(LOG_TAG, "Try and update Wearable");
-                    updateWearable();
+            resolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                    values.toArray(new ContentValues[values.size()]));
+            syncResult.stats.numDeletes += resolver.delete(
+                    WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                    new String[]{Long.toString(pruneDate)});
+            long[] locationIds = new long[values.size()];
+            int i = 0;
+            for (ForecastBatch batch : batches) {
+                for (int day = 0; day < batch.size(); day++) {
+                    locationIds[i++] = batch.getLocationId();
                 }
-
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+            return locationIds;
+        }
+    }
+
+    /**
+     * Gathers the days of the forecast as {@link ForecastJsonParser} reads them.  The location id
+     * isn't known until the city has been read, so it's filled in once parsing is done.
+     *
+     * Collectors are called on the fetcher's worker threads, so each has its own Time.
+     */
+    private class ForecastCollector implements ForecastJsonParser.Callback {
+        private final Time mDayTime = new Time();
+        private final int mJulianStartDay;
+        final boolean mPreferred;
+
+        final ForecastBatch mBatch = new ForecastBatch(16);
+        String mCityName;
+        double mCityLatitude;
+        double mCityLongitude;
+
+        ForecastCollector(int julianStartDay, boolean preferred) {
+            mJulianStartDay = julianStartDay;
+            mPreferred = preferred;
+        }
+
+        @Override
+        public void onCity(String cityName, double latitude, double longitude) {
+            mCityName = cityName;
+            mCityLatitude = latitude;
+            mCityLongitude = longitude;
+        }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+        @Override
+        public void onDay(int index, double pressure, int humidity, double windSpeed,
+                          double windDirection, String description, int weatherId,
+                          double high, double low) {
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = mDayTime.setJulianDay(mJulianStartDay + index);
+
+            mBatch.add(dateTime, weatherId, description, low, high, humidity, pressure,
+                    windSpeed, windDirection);
         }
     }
 
-    private void updateWidgets() {
+    private void updateWidgets(boolean todayChanged) {
         Context context = getContext();
         // Setting the package ensures that only components in our app will receive the broadcast
         Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
-                .setPackage(context.getPackageName());
+                .setPackage(context.getPackageName())
+                .putExtra(EXTRA_TODAY_CHANGED, todayChanged);
         context.sendBroadcast(dataUpdatedIntent);
     }
 
@@ -456,16 +521,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
                 String locationQuery = Utility.getPreferredLocation(context);
 
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+                ForecastSnapshot snapshot = ForecastSnapshot.get(context, locationQuery);
+                int today = snapshot != null
+                        ? snapshot.indexOfDay(System.currentTimeMillis()) : -1;
 
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != -1) {
+                    int weatherId = snapshot.getWeatherId(today);
+                    double high = snapshot.getMaxTemp(today);
+                    double low = snapshot.getMinTemp(today);
+                    String desc = snapshot.getDescription(today);
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -541,27 +605,87 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
                 }
-                cursor.close();
             }
         }
     }
 
     /**
-     * Connect to Google API Client for the the Wearable API if it is available
+     * Sends the forecast from today on to the wearable, if there is one.  The publisher sends it
+     * once it's connected; this only waits for today's icon, and only when the art pack isn't
+     * the one the wearable has.
      */
     private void updateWearable() {
+        Context context = getContext();
+        String locationQuery = Utility.getPreferredLocation(context);
 
-        Log.e(LOG_TAG,"updateWearable()");
-        mGoogleApiClient = new GoogleApiClient.Builder(getContext())
-                .addApiIfAvailable(Wearable.API)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .build();
-        mGoogleApiClient.connect();
+        ForecastSnapshot snapshot = ForecastSnapshot.get(context, locationQuery);
+        int today = snapshot != null ? snapshot.indexOfDay(System.currentTimeMillis()) : -1;
+        if (today == -1) {
+            return;
+        }
+
+        //The temperatures go in Celsius, with the user's units, for the wearable to convert
+        ForecastPayload.Builder builder = new ForecastPayload.Builder(
+                Utility.isMetric(context) ? ForecastPayload.FLAG_METRIC : 0,
+                snapshot.getLocationId(), snapshot.size() - today);
+        for (int i = today; i < snapshot.size(); i++) {
+            builder.add(snapshot.getDate(i), snapshot.getWeatherId(i),
+                    snapshot.getMaxTemp(i), snapshot.getMinTemp(i));
+        }
+
+        //Anything still queued for the wearable from an earlier sync is replaced by this.  The
+        //wearable shows the forecast as stale a while after the sync time, which the publisher
+        //skips sending again unless it has moved on a good deal.
+        DataMap dataMap = new DataMap();
+        dataMap.putByteArray(FORECAST_KEY, builder.build().encode());
+        dataMap.putLong(WearablePublisher.SYNCED_AT_KEY, System.currentTimeMillis());
+        //The wearable has the Sunshine art itself, so the icon only goes with other packs
+        if (!Utility.usingLocalGraphics(context)) {
+            dataMap.putAsset(IMAGE_KEY, getWearableIcon(context, snapshot.getWeatherId(today)));
+        }
+        WearablePublisher.getInstance(context).publish(TEMP_PATH, dataMap);
     }
+
+    /**
+     * @return the weather's icon from the user's art pack, already encoded if we've sent it
+     *         before.
+     */
+    private Asset getWearableIcon(Context context, int weatherId) {
+        Resources resources = context.getResources();
+        int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+        String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+        int iconSize = resources.getDimensionPixelSize(R.dimen.wearable_icon_dimen);
+
+        WearableIconCache icons = WearableIconCache.getInstance(context);
+        String iconKey = WearableIconCache.key(weatherId, Utility.getArtPack(context), iconSize);
+        Asset icon = icons.get(iconKey);
+        if (icon == null) {
+            try {
+                Bitmap largeIcon = Glide.with(context)
+                        .load(artUrl)
+                        .asBitmap()
+                        .error(artResourceId)
+                        .fitCenter()
+                        .into(iconSize, iconSize).get();
+                icon = icons.put(iconKey, largeIcon);
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                icon = WearableIconCache.toAsset(
+                        BitmapFactory.decodeResource(resources, artResourceId));
+            }
+        }
+        Log.d(LOG_TAG, "Wearable icons: " + icons.getHitCount() + " hits, "
+                + icons.getMissCount() + " misses, " + icons.getBytesSaved() + " bytes saved");
+        return icon;
+    }
+
     /**
      * Helper method to handle insertion of a new location in the weather database.
      *
+     * From Honeycomb on this is a single call to the provider, which inserts the location only
+     * if it's new and answers from its id cache when it isn't.  Older devices, without
+     * ContentResolver.call, query for the location and insert it if it's missing.
+     *
      * @param locationSetting The location string used to request updates from the server.
      * @param cityName A human-readable city name, e.g "Mountain View"
      * @param lat the latitude of the city
@@ -569,6 +693,17 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Bundle extras = new Bundle();
+            extras.putString(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+            extras.putDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+            extras.putDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+            Bundle result = getContext().getContentResolver().call(
+                    WeatherContract.LocationEntry.CONTENT_URI,
+                    WeatherContract.METHOD_UPSERT_LOCATION, locationSetting, extras);
+            return result.getLong(WeatherContract.EXTRA_LOCATION_ID);
+        }
+
         long locationId;
 
         // First, check if the location with this city name exists in the db
@@ -712,174 +847,4 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
         spe.commit();
     }
-
-    @Override
-    public void onConnected(Bundle bundle) {
-
-        Log.e(LOG_TAG,"onConnected() Start Data Task");
-        new WearableDataTask().execute();
-    }
-
-    @Override
-    public void onConnectionSuspended(int i) {
-
-        Log.e(LOG_TAG,"onConnectionSuspended()");
-    }
-
-    @Override
-    public void onConnectionFailed(ConnectionResult connectionResult) {
-
-        Log.e(LOG_TAG,"onConnectionFailed " + connectionResult.toString());
-    }
-
-    /**
-     * Builds an {@link com.google.android.gms.wearable.Asset} from a bitmap. The image that we get
-     * back from the camera in "data" is a thumbnail size. Typically, your image should not exceed
-     * 320x320 and if you want to have zoom and parallax effect in your app, limit the size of your
-     * image to 640x400. Resize your image before transferring to your wearable device.
-     */
-    private static Asset toAsset(Bitmap bitmap) {
-        ByteArrayOutputStream byteStream = null;
-        try {
-            byteStream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
-            return Asset.createFromBytes(byteStream.toByteArray());
-        } finally {
-            if (null != byteStream) {
-                try {
-                    byteStream.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
-        }
-    }
-
-    /**
-     * Task to send data to the Wearable
-     */
-    private class WearableDataTask extends AsyncTask<Void, Void, Void> {
-
-        @Override
-        protected Void doInBackground(Void... args) {
-
-            Context context = getContext();
-            String locationQuery = Utility.getPreferredLocation(context);
-
-            Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-            // we'll query our contentProvider, as always
-            Cursor cursor = context.getContentResolver().query(weatherUri, WEARABLE_WEATHER_PROJECTION, null, null, null);
-
-            if (cursor.moveToFirst()) {
-                int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                double high = cursor.getDouble(INDEX_MAX_TEMP);
-                double low = cursor.getDouble(INDEX_MIN_TEMP);
-
-                int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                Resources resources = context.getResources();
-                int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                String strHigh = Utility.formatTemperature(context, high);
-                String strLow = Utility.formatTemperature(context, low);
-
-                int iconSize = resources.getDimensionPixelSize(R.dimen.wearable_icon_dimen);
-                //Get image bitmap
-                Bitmap largeIcon;
-                try {
-                    largeIcon = Glide.with(context)
-                            .load(artUrl)
-                            .asBitmap()
-                            .error(artResourceId)
-                            .fitCenter()
-                            .into(iconSize, iconSize).get();
-                } catch (InterruptedException | ExecutionException e) {
-                    Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                    largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                }
-
-                //Put together the data map with the high and low temperatures
-                PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(TEMP_PATH);
-                putDataMapRequest.getDataMap().putString(HIGH_TEMP_KEY, strHigh);
-                putDataMapRequest.getDataMap().putString(LOW_TEMP_KEY, strLow);
-                putDataMapRequest.getDataMap().putAsset(IMAGE_KEY,toAsset(largeIcon));
-                putDataMapRequest.setUrgent();
-
-                //Put together the request
-                PutDataRequest request = putDataMapRequest.asPutDataRequest();
-                request.setUrgent();
-
-                Wearable.DataApi.putDataItem(mGoogleApiClient, request)
-                        .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                            @Override
-                            public void onResult(DataApi.DataItemResult dataItemResult) {
-
-                                if (!dataItemResult.getStatus().isSuccess()) {
-                                    Log.e(LOG_TAG, "ERROR: failed to putDataItem, status code: "
-                                            + dataItemResult.getStatus().getStatusCode());
-                                }
-                                else {
-                                    Log.e(LOG_TAG,"Success sending data to wearable!!");
-                                }
-                            }
-                        });
-            }
-
-            return null;
-        }
-    }
-
-    /**
-     * Determines if today's weather values have changed and sets a global flag accordingly. This
-     * flag is used to determine if we need to let the wearable know that today's forecast has changed
-     * or we have changed locations, and send it the new data.
-     * @param newHigh
-     * @param newLow
-     */
-    private void setUpdateWearableFlag(double newHigh, double newLow) {
-
-        Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-        // we'll query our contentProvider, as always
-        Cursor cursor = context.getContentResolver().query(weatherUri, WEARABLE_WEATHER_PROJECTION, null, null, null);
-
-        if (cursor.moveToFirst()) {
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
-
-            //Change to Fahrenheit or Celcius strings as there are big temp differences
-            //between the two
-            String strNewHigh = Utility.formatTemperature(getContext(),newHigh);
-            String strNewLow = Utility.formatTemperature(getContext(),newLow);
-            String strHigh = Utility.formatTemperature(getContext(),high);
-            String strLow = Utility.formatTemperature(getContext(),low);
-
-            //If we have changed location, update the wearable regardless of the temperature change
-            if(!mIsSameLocation) {
-                mUpdateWearable = true;
-                Log.i(LOG_TAG, "Location has changed to " + Utility.getPreferredLocation(getContext()) +
-                ". Update Wearable");
-            }
-            else {
-                //Compare the string format of the temps.
-                if (strHigh.equals(strNewHigh) && strLow.equals(strNewLow)) {
-                    Log.i(LOG_TAG, "Today's High and Low temps have not changed, don't update Wearable");
-                    Log.i(LOG_TAG, "Old high=" + strHigh + " New high=" + strNewHigh +
-                            ", Old low=" + strLow + " New low=" + strNewLow);
-                    mUpdateWearable = false;
-                } else {
-                    Log.i(LOG_TAG, "Today's Temperatures have changed. Old high=" + strHigh + " New high=" + strNewHigh
-                            + ", Old low=" + strLow + " New low=" + strNewLow);
-                    mUpdateWearable = true;
-                }
-            }
-
-
-        }
-
-    }
-}
\ No newline at end of file
+}
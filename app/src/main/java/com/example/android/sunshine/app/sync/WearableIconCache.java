@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.AtomicFile;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.google.android.gms.wearable.Asset;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The weather icons sent to the wearable, already encoded, so a push for weather we've sent
+ * before doesn't have to load the art and compress it all over again.
+ *
+ * Icons are kept by weather id, art pack and size, in memory and in a directory under the
+ * cache dir, which the system may clear.  There are only a few dozen of them, so the directory
+ * isn't trimmed.  Icons that fell back to the built in art aren't kept, so the real art is
+ * tried again next time.
+ */
+public class WearableIconCache {
+    private static final String LOG_TAG = WearableIconCache.class.getSimpleName();
+
+    static final String DIR_NAME = "wearable_icons";
+
+    // Enough for every condition at a couple of sizes; they're a few KB each
+    private static final int MAX_MEMORY_BYTES = 256 * 1024;
+
+    private static WearableIconCache sInstance;
+
+    public static synchronized WearableIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WearableIconCache(
+                    new File(context.getCacheDir(), DIR_NAME), MAX_MEMORY_BYTES);
+        }
+        return sInstance;
+    }
+
+    private final File mDir;
+    private final LruCache<String, Asset> mAssets;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+
+    WearableIconCache(File dir, int maxMemoryBytes) {
+        mDir = dir;
+        mAssets = new LruCache<String, Asset>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Asset asset) {
+                return asset.getData().length;
+            }
+        };
+    }
+
+    /**
+     * @param artPack The art pack's URL format, as from
+     *                {@link com.example.android.sunshine.app.Utility#getArtPack}.
+     * @param size The icon's width and height, in pixels.
+     * @return the key for an icon, which is also its file name.
+     */
+    public static String key(int weatherId, String artPack, int size) {
+        return String.format(Locale.US, "%d-%08x-%d", weatherId, artPack.hashCode(), size);
+    }
+
+    /**
+     * @return the icon, or null if it hasn't been {@link #put}.
+     */
+    public Asset get(String key) {
+        Asset asset = mAssets.get(key);
+        if (asset == null) {
+            byte[] data = read(key);
+            if (data != null) {
+                asset = Asset.createFromBytes(data);
+                mAssets.put(key, asset);
+            }
+        }
+        if (asset == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        mBytesSaved.addAndGet(asset.getData().length);
+        return asset;
+    }
+
+    /**
+     * Encodes an icon and keeps it.  This should not be called from the UI thread because it
+     * writes to a file.
+     *
+     * @return the encoded icon.
+     */
+    public Asset put(String key, Bitmap bitmap) {
+        Asset asset = Asset.createFromBytes(encode(bitmap));
+        mAssets.put(key, asset);
+        write(key, asset.getData());
+        return asset;
+    }
+
+    /**
+     * Encodes an icon without keeping it, for icons that fell back to the built in art.
+     */
+    public static Asset toAsset(Bitmap bitmap) {
+        return Asset.createFromBytes(encode(bitmap));
+    }
+
+    // PNG, so the icon keeps its transparency; PNG ignores the quality
+    static byte[] encode(Bitmap bitmap) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(16 * 1024);
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * @return how many times {@link #get} found the icon.
+     */
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return how many times {@link #get} didn't find the icon.
+     */
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return the encoded size of every icon {@link #get} found, which is how much compressing
+     *         the hits saved.
+     */
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    /**
+     * Forgets the icons in memory, so the next ones are read from their files.  For tests.
+     */
+    void evictAll() {
+        mAssets.evictAll();
+    }
+
+    private byte[] read(String key) {
+        try {
+            return new AtomicFile(new File(mDir, key)).readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading icon " + key, e);
+            return null;
+        }
+    }
+
+    private synchronized void write(String key, byte[] data) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(LOG_TAG, "Couldn't create " + mDir);
+            return;
+        }
+        AtomicFile file = new AtomicFile(new File(mDir, key));
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            stream.write(data);
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing icon " + key, e);
+            file.failWrite(stream);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.shared.ReceiptBatch;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends data items to the wearable over one connection to the data layer for the whole
+ * process, instead of a new GoogleApiClient for every sync.
+ *
+ * {@link #publish} queues the item and returns.  Items are kept by path, so a newer item
+ * replaces one for the same path that hasn't been sent yet, and a burst of syncs sends the
+ * wearable only the last.  A single thread connects, writes everything queued, and disconnects
+ * once it has been idle for a while.  If connecting or a write fails it tries again a few times,
+ * each time waiting twice as long, then drops what's queued until the next publish.
+ *
+ * Each item is written with a version, and the watch sends back receipts for the versions it
+ * applied, a batch at a time, which the {@link WearableReceiptService} passes to
+ * {@link #onReceipts}.  Once the watch has applied the latest item for a path, publishing the
+ * same data for it again is skipped, unless the item's sync time has moved on by
+ * {@link #REFRESH_MILLIS}, so the watch hears that what it has is still current.  The receipts also give how long items took from being
+ * written to being applied on the watch.
+ */
+public class WearablePublisher {
+    private static final String LOG_TAG = WearablePublisher.class.getSimpleName();
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long WRITE_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long IDLE_MILLIS = 60 * 1000;
+    private static final long RETRY_DELAY_MILLIS = 5 * 1000;
+    static final int MAX_ATTEMPTS = 4;
+    // The thread outlives the idle disconnect by a little, then goes too
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    // Written items remembered until the watch's receipt for them comes back
+    private static final int MAX_UNCONFIRMED = 16;
+
+    // The key of the version written with each item
+    public static final String VERSION_KEY = "version";
+    // The key of the time the item's data was last synced, for items that have one
+    public static final String SYNCED_AT_KEY = "synced_at";
+    // The watch shows a forecast as stale 6 hours after it was synced, and syncs are 3 hours
+    // apart, so unchanged data goes again once it's been synced 2 hours later than sent
+    static final long REFRESH_MILLIS = 2 * 60 * 60 * 1000;
+
+    /**
+     * The wearable data layer, so the publisher can be tested without Play services.  Every
+     * method is called on the publisher's thread and may block.
+     */
+    public interface DataLayer {
+        /**
+         * @return true if it's connected, or connected within the timeout.
+         */
+        boolean connect(long timeoutMillis);
+
+        void disconnect();
+
+        /**
+         * @return true if the item was written within the timeout.
+         */
+        boolean putDataItem(String path, DataMap data, long timeoutMillis);
+    }
+
+    private static WearablePublisher sInstance;
+
+    /**
+     * @return the process's publisher, connecting through Play services.
+     */
+    public static synchronized WearablePublisher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WearablePublisher(
+                    new GoogleApiDataLayer(context.getApplicationContext()), RETRY_DELAY_MILLIS);
+        }
+        return sInstance;
+    }
+
+    private final DataLayer mDataLayer;
+    private final long mRetryDelayMillis;
+    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
+
+    // guarded by this
+    private final Map<String, DataMap> mPending = new LinkedHashMap<String, DataMap>();
+    private boolean mFlushScheduled;
+    // Versions start from the clock, so they keep increasing when the process restarts
+    private long mNextVersion = System.currentTimeMillis();
+    // Written items by version, until the watch's receipt for them comes back
+    private final Map<Long, Written> mUnconfirmed = new LinkedHashMap<Long, Written>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Written> eldest) {
+            return size() > MAX_UNCONFIRMED;
+        }
+    };
+    // The version last written for each path, and the item if the watch has applied it
+    private final Map<String, Long> mLatestVersions = new HashMap<String, Long>();
+    private final Map<String, Written> mApplied = new HashMap<String, Written>();
+
+    // Receipt counts and latencies, guarded by this
+    private int mSkippedCount;
+    private int mReceiptCount;
+    private int mFailedCount;
+    private long mLatencyMillis;
+    private long mMaxLatencyMillis;
+
+    // only touched on the executor's thread
+    private int mAttempts;
+    private boolean mConnected;
+    private ScheduledFuture<?> mIdleDisconnect;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mDisconnect = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(LOG_TAG, "Idle, disconnecting");
+            mDataLayer.disconnect();
+            mConnected = false;
+        }
+    };
+
+    WearablePublisher(DataLayer dataLayer, long retryDelayMillis) {
+        mDataLayer = dataLayer;
+        mRetryDelayMillis = retryDelayMillis;
+        mExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues an item for the wearable, replacing any for the same path that hasn't been sent.
+     */
+    public void publish(String path, DataMap data) {
+        synchronized (this) {
+            Written applied = mApplied.get(path);
+            if (applied != null && isCurrent(applied.data, data)) {
+                mSkippedCount++;
+                Log.d(LOG_TAG, "The wearable already has " + path + ", skipping");
+                return;
+            }
+            mPending.remove(path);
+            mPending.put(path, data);
+            // A flush that's waiting to retry will pick this up as well
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mExecutor.execute(mFlush);
+    }
+
+    /**
+     * @return whether the watch, having applied the first item, has no use for the second.
+     */
+    private static boolean isCurrent(DataMap applied, DataMap data) {
+        long appliedSyncedAt = applied.getLong(SYNCED_AT_KEY, 0);
+        long syncedAt = data.getLong(SYNCED_AT_KEY, 0);
+        if (syncedAt - appliedSyncedAt >= REFRESH_MILLIS) {
+            return false;
+        }
+        if (syncedAt == appliedSyncedAt) {
+            return applied.equals(data);
+        }
+        // The same data, synced again since
+        DataMap resynced = new DataMap();
+        resynced.putAll(data);
+        resynced.putLong(SYNCED_AT_KEY, appliedSyncedAt);
+        return applied.equals(resynced);
+    }
+
+    private void flush() {
+        if (mIdleDisconnect != null) {
+            mIdleDisconnect.cancel(false);
+            mIdleDisconnect = null;
+        }
+        if (!mConnected) {
+            mConnected = mDataLayer.connect(CONNECT_TIMEOUT_MILLIS);
+            if (!mConnected) {
+                Log.e(LOG_TAG, "Couldn't connect to the data layer");
+                retry();
+                return;
+            }
+        }
+
+        while (true) {
+            String path;
+            DataMap data;
+            long version;
+            synchronized (this) {
+                Iterator<Map.Entry<String, DataMap>> it = mPending.entrySet().iterator();
+                if (!it.hasNext()) {
+                    mFlushScheduled = false;
+                    break;
+                }
+                Map.Entry<String, DataMap> item = it.next();
+                path = item.getKey();
+                data = item.getValue();
+                it.remove();
+                version = mNextVersion++;
+                mUnconfirmed.put(version,
+                        new Written(path, data, version, SystemClock.elapsedRealtime()));
+                mLatestVersions.put(path, version);
+                // Whatever the watch applied before, it's about to get something else
+                mApplied.remove(path);
+            }
+            DataMap stamped = new DataMap();
+            stamped.putAll(data);
+            stamped.putLong(VERSION_KEY, version);
+            if (!mDataLayer.putDataItem(path, stamped, WRITE_TIMEOUT_MILLIS)) {
+                Log.e(LOG_TAG, "Couldn't write " + path);
+                // The connection may have gone; check it again next time
+                mConnected = false;
+                synchronized (this) {
+                    // Unless something newer for the path has been queued meanwhile
+                    if (!mPending.containsKey(path)) {
+                        mPending.put(path, data);
+                    }
+                }
+                retry();
+                return;
+            }
+        }
+
+        mAttempts = 0;
+        mIdleDisconnect = mExecutor.schedule(mDisconnect, IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry() {
+        mAttempts++;
+        if (mAttempts < MAX_ATTEMPTS) {
+            mExecutor.schedule(mFlush, mRetryDelayMillis << (mAttempts - 1),
+                    TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        Log.e(LOG_TAG, "Giving up after " + mAttempts + " attempts");
+        mAttempts = 0;
+        synchronized (this) {
+            mPending.clear();
+            mFlushScheduled = false;
+        }
+        mDataLayer.disconnect();
+        mConnected = false;
+    }
+
+    /**
+     * Takes in a batch of the watch's receipts.
+     */
+    public void onReceipts(byte[] data) {
+        ReceiptBatch batch;
+        try {
+            batch = ReceiptBatch.decode(data);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Bad receipts from the wearable", e);
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            for (int i = 0; i < batch.size(); i++) {
+                Written written = mUnconfirmed.remove(batch.getVersion(i));
+                if (written == null) {
+                    // Already confirmed, or too old to remember
+                    continue;
+                }
+                // The round trip, less the time the receipt waited on the watch
+                long latency = Math.max(0, now - written.writtenAt - batch.getHeldMillis(i));
+                mReceiptCount++;
+                mLatencyMillis += latency;
+                mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+                if (batch.getStatus(i) != ReceiptBatch.STATUS_APPLIED) {
+                    mFailedCount++;
+                    Log.w(LOG_TAG, "The wearable couldn't apply " + written.path + " version "
+                            + written.version + ": status " + batch.getStatus(i));
+                } else if (mLatestVersions.get(written.path) == written.version) {
+                    mApplied.put(written.path, written);
+                }
+            }
+            Log.d(LOG_TAG, "Wearable receipts: " + mReceiptCount + " received, "
+                    + mFailedCount + " failed, " + getMeanLatencyMillis() + "ms mean latency, "
+                    + mMaxLatencyMillis + "ms max, " + mSkippedCount + " unchanged skipped");
+        }
+    }
+
+    public synchronized int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    public synchronized int getReceiptCount() {
+        return mReceiptCount;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return the mean time from writing an item to the watch applying it, for the items with
+     *         receipts, taking in the time the receipt took to come back.
+     */
+    public synchronized long getMeanLatencyMillis() {
+        return mReceiptCount == 0 ? 0 : mLatencyMillis / mReceiptCount;
+    }
+
+    public synchronized long getMaxLatencyMillis() {
+        return mMaxLatencyMillis;
+    }
+
+    /**
+     * An item as it was written, to match with the watch's receipt for it.
+     */
+    private static class Written {
+        final String path;
+        final DataMap data;
+        final long version;
+        final long writtenAt;
+
+        Written(String path, DataMap data, long version, long writtenAt) {
+            this.path = path;
+            this.data = data;
+            this.version = version;
+            this.writtenAt = writtenAt;
+        }
+    }
+
+    /**
+     * The data layer through Play services.
+     */
+    private static class GoogleApiDataLayer implements DataLayer {
+        private final GoogleApiClient mClient;
+
+        GoogleApiDataLayer(Context context) {
+            mClient = new GoogleApiClient.Builder(context)
+                    .addApiIfAvailable(Wearable.API)
+                    .build();
+        }
+
+        @Override
+        public boolean connect(long timeoutMillis) {
+            if (mClient.isConnected()) {
+                return true;
+            }
+            ConnectionResult result =
+                    mClient.blockingConnect(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (!result.isSuccess()) {
+                Log.e(LOG_TAG, "onConnectionFailed " + result.toString());
+            }
+            return result.isSuccess();
+        }
+
+        @Override
+        public void disconnect() {
+            mClient.disconnect();
+        }
+
+        @Override
+        public boolean putDataItem(String path, DataMap data, long timeoutMillis) {
+            PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(path);
+            putDataMapRequest.getDataMap().putAll(data);
+            PutDataRequest request = putDataMapRequest.asPutDataRequest();
+            request.setUrgent();
+            DataApi.DataItemResult result = Wearable.DataApi.putDataItem(mClient, request)
+                    .await(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (!result.getStatus().isSuccess()) {
+                Log.e(LOG_TAG, "ERROR: failed to putDataItem, status code: "
+                        + result.getStatus().getStatusCode());
+            }
+            return result.getStatus().isSuccess();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.WearableListenerService;
+
+/**
+ * Passes the watch's receipts for the items it was sent to the {@link WearablePublisher}.
+ */
+public class WearableReceiptService extends WearableListenerService {
+    // The path the watch sends its receipts to
+    static final String RECEIPTS_PATH = "/data-item-received";
+
+    @Override
+    public void onMessageReceived(MessageEvent messageEvent) {
+        if (RECEIPTS_PATH.equals(messageEvent.getPath())) {
+            WearablePublisher.getInstance(this).onReceipts(messageEvent.getData());
+        }
+    }
+}
@@ -46,7 +46,9 @@ public class TodayWidgetProvider extends AppWidgetProvider {
     @Override
     public void onReceive(@NonNull Context context, @NonNull Intent intent) {
         super.onReceive(context, intent);
-        if (SunshineSyncAdapter.ACTION_DATA_UPDATED.equals(intent.getAction())) {
+        // Only the detail widget shows the days after today
+        if (SunshineSyncAdapter.ACTION_DATA_UPDATED.equals(intent.getAction())
+                && intent.getBooleanExtra(SunshineSyncAdapter.EXTRA_TODAY_CHANGED, true)) {
             context.startService(new Intent(context, TodayWidgetIntentService.class));
         }
     }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import com.example.android.sunshine.app.sync.ForecastResponses.RecordingCallback;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+
+import static com.example.android.sunshine.app.sync.ForecastResponses.createForecastPayload;
+import static com.example.android.sunshine.app.sync.ForecastResponses.parseWithJsonObject;
+
+/*
+    Checks that ForecastJsonParser pulls out exactly what the old JSONObject based parsing did.
+    The parser has no Android dependencies, so these run on the JVM.
+ */
+public class TestForecastJsonParser extends TestCase {
+
+    public void testParseMatchesJsonObject() throws Exception {
+        for (int numDays : new int[]{14, 16}) {
+            byte[] payload = createForecastPayload(numDays);
+
+            RecordingCallback streamed = new RecordingCallback();
+            int code = new ForecastJsonParser().parse(new ByteArrayInputStream(payload), streamed);
+            RecordingCallback expected = parseWithJsonObject(payload);
+
+            assertEquals("Error: Wrong message code", 200, code);
+            assertEquals("Error: City doesn't match the JSONObject parse",
+                    expected.mCity, streamed.mCity);
+            assertEquals("Error: Days don't match the JSONObject parse",
+                    expected.mDays, streamed.mDays);
+            assertEquals("Error: Wrong number of days", numDays, streamed.mDays.size());
+        }
+    }
+
+    public void testSmallBuffer() throws Exception {
+        // Values straddling buffer refills must come out the same
+        byte[] payload = createForecastPayload(14);
+        RecordingCallback streamed = new RecordingCallback();
+        new ForecastJsonParser(new byte[7]).parse(new ByteArrayInputStream(payload), streamed);
+        assertEquals("Error: Days don't match the JSONObject parse",
+                parseWithJsonObject(payload).mDays, streamed.mDays);
+    }
+
+    public void testErrorCode() throws Exception {
+        byte[] payload = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}".getBytes("UTF-8");
+        RecordingCallback callback = new RecordingCallback();
+        int code = new ForecastJsonParser().parse(new ByteArrayInputStream(payload), callback);
+        assertEquals("Error: Wrong message code", 404, code);
+        assertTrue("Error: No days should have been read", callback.mDays.isEmpty());
+    }
+
+    public void testEmptyAndMalformedInput() throws Exception {
+        ForecastJsonParser parser = new ForecastJsonParser();
+        try {
+            parser.parse(new ByteArrayInputStream(new byte[0]), new RecordingCallback());
+            fail("Error: An empty response should throw EOFException");
+        } catch (EOFException expected) {
+        }
+        try {
+            byte[] truncated = new String(createForecastPayload(14), "UTF-8")
+                    .substring(0, 500).getBytes("UTF-8");
+            parser.parse(new ByteArrayInputStream(truncated), new RecordingCallback());
+            fail("Error: A truncated response should throw MalformedForecastException");
+        } catch (ForecastJsonParser.MalformedForecastException expected) {
+        }
+        try {
+            parser.parse(new ByteArrayInputStream("{\"list\":[{\"pressure\":1}]}".getBytes("UTF-8")),
+                    new RecordingCallback());
+            fail("Error: A day missing fields should throw MalformedForecastException");
+        } catch (ForecastJsonParser.MalformedForecastException expected) {
+        }
+    }
+
+    public void testStrayCloseRejected() throws Exception {
+        ForecastJsonParser parser = new ForecastJsonParser();
+        String[] payloads = {"{\"foo\":}", "{\"foo\":]}", "{\"list\":[],\"foo\":]"};
+        for (String payload : payloads) {
+            try {
+                parser.parse(new ByteArrayInputStream(payload.getBytes("UTF-8")),
+                        new RecordingCallback());
+                fail("Error: " + payload + " should throw MalformedForecastException");
+            } catch (ForecastJsonParser.MalformedForecastException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Forecast responses and a callback that records what's parsed from them, for the parser's
+    tests on the JVM and the fetcher's tests on a device alike.
+ */
+class ForecastResponses {
+
+    /*
+        Builds a response shaped like the ones recorded from OWM's daily forecast API, including
+        the fields we don't read.
+     */
+    static byte[] createForecastPayload(int numDays) throws IOException {
+        final String[] conditions = {"Clear", "Clouds", "Rain", "Snow"};
+        final int[] conditionIds = {800, 803, 500, 601};
+        StringBuilder json = new StringBuilder();
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0112,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) json.append(',');
+            int condition = i % conditions.length;
+            json.append("{\"dt\":").append(1419033600L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(15.2 + i)
+                    .append(",\"min\":").append(8.04 + i * 0.5)
+                    .append(",\"max\":").append(17.66 + i * 0.25)
+                    .append(",\"night\":8.04,\"eve\":14.7,\"morn\":9.1},")
+                    .append("\"pressure\":").append(1013.25 - i)
+                    .append(",\"humidity\":").append(60 + i)
+                    .append(",\"weather\":[{\"id\":").append(conditionIds[condition])
+                    .append(",\"main\":\"").append(conditions[condition])
+                    .append("\",\"description\":\"sky is \\\"clear\\\"\",\"icon\":\"01d\"}]")
+                    .append(",\"speed\":").append(3.1 + i * 0.1)
+                    .append(",\"deg\":").append((i * 37) % 360)
+                    .append(",\"clouds\":").append(i * 5)
+                    .append(",\"rain\":null}");
+        }
+        json.append("]}");
+        return json.toString().getBytes("UTF-8");
+    }
+
+    /*
+        The parsing SunshineSyncAdapter did before it used ForecastJsonParser.
+     */
+    static RecordingCallback parseWithJsonObject(byte[] payload) throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        JSONObject forecastJson = new JSONObject(new String(payload, "UTF-8"));
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        JSONObject cityCoord = cityJson.getJSONObject("coord");
+        callback.onCity(cityJson.getString("name"),
+                cityCoord.getDouble("lat"), cityCoord.getDouble("lon"));
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+            callback.onDay(i,
+                    dayForecast.getDouble("pressure"),
+                    dayForecast.getInt("humidity"),
+                    dayForecast.getDouble("speed"),
+                    dayForecast.getDouble("deg"),
+                    weatherObject.getString("main"),
+                    weatherObject.getInt("id"),
+                    temperatureObject.getDouble("max"),
+                    temperatureObject.getDouble("min"));
+        }
+        return callback;
+    }
+
+    static class RecordingCallback implements ForecastJsonParser.Callback {
+        String mCity;
+        final List<String> mDays = new ArrayList<String>();
+
+        @Override
+        public void onCity(String cityName, double latitude, double longitude) {
+            mCity = cityName + "|" + latitude + "|" + longitude;
+        }
+
+        @Override
+        public void onDay(int index, double pressure, int humidity, double windSpeed,
+                          double windDirection, String description, int weatherId,
+                          double high, double low) {
+            mDays.add(index + "|" + pressure + "|" + humidity + "|" + windSpeed + "|"
+                    + windDirection + "|" + description + "|" + weatherId + "|"
+                    + high + "|" + low);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A location's forecast as the phone sends it to the watch: every day, in a byte array of about
+ * a hundred bytes.
+ *
+ * The encoding starts with a format version, then the flags and the location id, then the days.
+ * Numbers are unsigned varints, and zigzag encoded where they may be negative.  Dates are in
+ * minutes, the first in full and the rest as the difference from the one before, which is a
+ * day give or take a daylight saving change.  Temperatures are degrees Celsius to a tenth: the
+ * low in full and the high as its difference from the low.  The watch converts them to the
+ * user's units itself.
+ *
+ * This is plain Java, shared by the phone app and the watch face.
+ */
+public final class ForecastPayload {
+
+    // Bump this whenever the encoding changes; payloads in other versions fail to decode
+    public static final int VERSION = 1;
+
+    // The user wants the temperatures in Celsius
+    public static final int FLAG_METRIC = 1;
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    // A day, and the hour a daylight saving change can add to it
+    private static final long MAX_DAY_MILLIS = 25 * 60 * MILLIS_PER_MINUTE;
+    private static final double TEMP_SCALE = 10;
+
+    // Far more days than OWM gives, so a corrupt count can't make us allocate much
+    private static final int MAX_DAYS = 64;
+
+    private final int mFlags;
+    private final long mLocationId;
+    private final long[] mDates;
+    private final int[] mWeatherIds;
+    private final double[] mMaxTemps;
+    private final double[] mMinTemps;
+
+    private ForecastPayload(int flags, long locationId, int size) {
+        mFlags = flags;
+        mLocationId = locationId;
+        mDates = new long[size];
+        mWeatherIds = new int[size];
+        mMaxTemps = new double[size];
+        mMinTemps = new double[size];
+    }
+
+    /**
+     * Builds a payload a day at a time, earliest first.
+     */
+    public static class Builder {
+        private final ForecastPayload mPayload;
+        private int mSize;
+
+        public Builder(int flags, long locationId, int days) {
+            if (days < 0 || days > MAX_DAYS) {
+                throw new IllegalArgumentException("Bad number of days " + days);
+            }
+            mPayload = new ForecastPayload(flags, locationId, days);
+        }
+
+        /**
+         * @param date The start of the day, in milliseconds.  Only whole minutes are kept.
+         * @param maxTemp The high in degrees Celsius.  Only tenths of a degree are kept.
+         * @param minTemp The low in degrees Celsius.  Only tenths of a degree are kept.
+         */
+        public Builder add(long date, int weatherId, double maxTemp, double minTemp) {
+            mPayload.mDates[mSize] = date;
+            mPayload.mWeatherIds[mSize] = weatherId;
+            mPayload.mMaxTemps[mSize] = maxTemp;
+            mPayload.mMinTemps[mSize] = minTemp;
+            mSize++;
+            return this;
+        }
+
+        public ForecastPayload build() {
+            if (mSize != mPayload.mDates.length) {
+                throw new IllegalStateException(
+                        "Added " + mSize + " days of " + mPayload.mDates.length);
+            }
+            return mPayload;
+        }
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 8 * mDates.length);
+        writeVarint(out, VERSION);
+        writeVarint(out, mFlags);
+        writeVarint(out, mLocationId);
+        writeVarint(out, mDates.length);
+        long previousMinutes = 0;
+        for (int i = 0; i < mDates.length; i++) {
+            long minutes = mDates[i] / MILLIS_PER_MINUTE;
+            writeVarint(out, zigzag(minutes - previousMinutes));
+            previousMinutes = minutes;
+            writeVarint(out, mWeatherIds[i]);
+            long min = quantize(mMinTemps[i]);
+            writeVarint(out, zigzag(min));
+            writeVarint(out, zigzag(quantize(mMaxTemps[i]) - min));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the payload is truncated, corrupt or in another version.
+     */
+    public static ForecastPayload decode(byte[] data) throws IOException {
+        Reader in = new Reader(data);
+        long version = in.readVarint();
+        if (version != VERSION) {
+            throw new IOException("Unknown forecast payload version " + version);
+        }
+        int flags = (int) in.readVarint();
+        long locationId = in.readVarint();
+        long size = in.readVarint();
+        if (size < 0 || size > MAX_DAYS) {
+            throw new IOException("Bad forecast payload size " + size);
+        }
+        ForecastPayload payload = new ForecastPayload(flags, locationId, (int) size);
+        long minutes = 0;
+        for (int i = 0; i < size; i++) {
+            minutes += unzigzag(in.readVarint());
+            payload.mDates[i] = minutes * MILLIS_PER_MINUTE;
+            payload.mWeatherIds[i] = (int) in.readVarint();
+            long min = unzigzag(in.readVarint());
+            long max = min + unzigzag(in.readVarint());
+            payload.mMinTemps[i] = min / TEMP_SCALE;
+            payload.mMaxTemps[i] = max / TEMP_SCALE;
+        }
+        if (in.mPosition != data.length) {
+            throw new IOException("Trailing bytes in forecast payload");
+        }
+        return payload;
+    }
+
+    /**
+     * @return the index of the day that the time falls in, taking each day to last until the
+     *         next one starts, or -1 if it's before the first day or after the last.
+     */
+    public int indexOfDay(long time) {
+        for (int i = mDates.length - 1; i >= 0; i--) {
+            if (mDates[i] <= time) {
+                boolean last = i == mDates.length - 1;
+                return !last || time - mDates[i] < MAX_DAY_MILLIS ? i : -1;
+            }
+        }
+        return -1;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public boolean isMetric() {
+        return (mFlags & FLAG_METRIC) != 0;
+    }
+
+    public long getLocationId() {
+        return mLocationId;
+    }
+
+    public int size() {
+        return mDates.length;
+    }
+
+    public long getDate(int i) {
+        return mDates[i];
+    }
+
+    public int getWeatherId(int i) {
+        return mWeatherIds[i];
+    }
+
+    /**
+     * @return the high in degrees Celsius.
+     */
+    public double getMaxTemp(int i) {
+        return mMaxTemps[i];
+    }
+
+    /**
+     * @return the low in degrees Celsius.
+     */
+    public double getMinTemp(int i) {
+        return mMinTemps[i];
+    }
+
+    private static long quantize(double temp) {
+        return Math.round(temp * TEMP_SCALE);
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long n) {
+        while ((n & ~0x7FL) != 0) {
+            out.write((int) (n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    private static class Reader {
+        final byte[] mData;
+        int mPosition;
+
+        Reader(byte[] data) {
+            mData = data;
+        }
+
+        long readVarint() throws IOException {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPosition == mData.length) {
+                    throw new IOException("Truncated forecast payload");
+                }
+                byte b = mData[mPosition++];
+                n |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+            }
+            throw new IOException("Bad varint in forecast payload");
+        }
+    }
+}
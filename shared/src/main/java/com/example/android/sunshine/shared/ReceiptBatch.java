@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * The watch's receipts for the data items the phone sent it, sent back a batch at a time.
+ *
+ * Each receipt names the item by the version the phone stamped on it, says whether the watch
+ * applied it, and gives two times measured on the watch: how long applying it took, and how
+ * long the receipt then waited for its batch to be sent.  The phone can take the second from
+ * the round trip to get how long an item took to reach the watch and be applied.
+ *
+ * The encoding is a format version and a count, then each receipt in fixed-width fields.
+ *
+ * This is plain Java, shared by the phone app and the watch face.
+ */
+public final class ReceiptBatch {
+
+    // Bump this whenever the encoding changes; batches in other versions fail to decode
+    public static final int VERSION = 1;
+
+    // The item was applied, its icon included
+    public static final int STATUS_APPLIED = 0;
+    // The forecast in the item couldn't be decoded
+    public static final int STATUS_BAD_FORECAST = 1;
+    // The forecast was applied but its icon couldn't be decoded
+    public static final int STATUS_BAD_ICON = 2;
+
+    // Far more than the watch holds back, so a corrupt count can't make us allocate much
+    public static final int MAX_RECEIPTS = 64;
+
+    private final long[] mVersions;
+    private final int[] mStatuses;
+    private final int[] mApplyMillis;
+    private final int[] mHeldMillis;
+    private int mSize;
+
+    public ReceiptBatch(int capacity) {
+        if (capacity < 0 || capacity > MAX_RECEIPTS) {
+            throw new IllegalArgumentException("Bad number of receipts " + capacity);
+        }
+        mVersions = new long[capacity];
+        mStatuses = new int[capacity];
+        mApplyMillis = new int[capacity];
+        mHeldMillis = new int[capacity];
+    }
+
+    /**
+     * @param version The version the phone stamped on the item.
+     * @param applyMillis How long the watch took from receiving the item to applying it.
+     * @param heldMillis How long the receipt waited, after that, to be sent.
+     */
+    public ReceiptBatch add(long version, int status, long applyMillis, long heldMillis) {
+        mVersions[mSize] = version;
+        mStatuses[mSize] = status;
+        mApplyMillis[mSize] = clamp(applyMillis);
+        mHeldMillis[mSize] = clamp(heldMillis);
+        mSize++;
+        return this;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + 17 * mSize);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeByte(mSize);
+            for (int i = 0; i < mSize; i++) {
+                out.writeLong(mVersions[i]);
+                out.writeByte(mStatuses[i]);
+                out.writeInt(mApplyMillis[i]);
+                out.writeInt(mHeldMillis[i]);
+            }
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the batch is truncated, corrupt or in another version.
+     */
+    public static ReceiptBatch decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unknown receipt batch version " + version);
+            }
+            int size = in.readUnsignedByte();
+            if (size > MAX_RECEIPTS) {
+                throw new IOException("Bad receipt batch size " + size);
+            }
+            ReceiptBatch batch = new ReceiptBatch(size);
+            for (int i = 0; i < size; i++) {
+                batch.add(in.readLong(), in.readUnsignedByte(), in.readInt(), in.readInt());
+            }
+            if (in.available() != 0) {
+                throw new IOException("Trailing bytes in receipt batch");
+            }
+            return batch;
+        } catch (EOFException e) {
+            throw new IOException("Truncated receipt batch", e);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getVersion(int i) {
+        return mVersions[i];
+    }
+
+    public int getStatus(int i) {
+        return mStatuses[i];
+    }
+
+    public int getApplyMillis(int i) {
+        return mApplyMillis[i];
+    }
+
+    public int getHeldMillis(int i) {
+        return mHeldMillis[i];
+    }
+
+    private static int clamp(long millis) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, millis));
+    }
+}
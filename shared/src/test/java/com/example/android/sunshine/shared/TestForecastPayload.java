@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.shared;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TestForecastPayload extends TestCase {
+
+    // December 20th, 2014, midnight in Los Angeles
+    private static final long TEST_DATE = 1419062400000L;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    static ForecastPayload createPayload(int days) {
+        ForecastPayload.Builder builder =
+                new ForecastPayload.Builder(ForecastPayload.FLAG_METRIC, 1234, days);
+        long date = TEST_DATE;
+        for (int i = 0; i < days; i++) {
+            builder.add(date, 800 + i % 5, 21.37 - i, -4.04 + 0.5 * i);
+            // One day short an hour, as a daylight saving change would make it
+            date += i == 3 ? DAY_IN_MILLIS - HOUR_IN_MILLIS : DAY_IN_MILLIS;
+        }
+        return builder.build();
+    }
+
+    public void testRoundTrip() throws IOException {
+        ForecastPayload payload = createPayload(16);
+        ForecastPayload decoded = ForecastPayload.decode(payload.encode());
+
+        assertTrue(decoded.isMetric());
+        assertEquals(1234, decoded.getLocationId());
+        assertEquals(16, decoded.size());
+        for (int i = 0; i < decoded.size(); i++) {
+            assertEquals(payload.getDate(i), decoded.getDate(i));
+            assertEquals(payload.getWeatherId(i), decoded.getWeatherId(i));
+            assertEquals("Error: High not kept to a tenth of a degree",
+                    payload.getMaxTemp(i), decoded.getMaxTemp(i), 0.05);
+            assertEquals("Error: Low not kept to a tenth of a degree",
+                    payload.getMinTemp(i), decoded.getMinTemp(i), 0.05);
+        }
+    }
+
+    public void testSize() {
+        byte[] data = createPayload(14).encode();
+        // A few bytes of header, then two each for the date, weather id, low and high
+        assertTrue("Error: Two weeks took " + data.length + " bytes", data.length <= 8 + 14 * 8);
+        assertEquals("Error: An empty forecast should be just the header",
+                4, new ForecastPayload.Builder(0, 1, 0).build().encode().length);
+    }
+
+    public void testBadPayloads() {
+        byte[] data = createPayload(14).encode();
+        assertDecodeFails("truncated", Arrays.copyOf(data, data.length - 1));
+        assertDecodeFails("with trailing bytes", Arrays.copyOf(data, data.length + 1));
+
+        byte[] otherVersion = data.clone();
+        otherVersion[0] = (byte) (ForecastPayload.VERSION + 1);
+        assertDecodeFails("in another version", otherVersion);
+
+        // A day count that reads back as -1
+        byte[] negativeSize = {ForecastPayload.VERSION, 0, 1, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, 0x01};
+        assertDecodeFails("with a negative size", negativeSize);
+    }
+
+    public void testIndexOfDay() {
+        ForecastPayload payload = createPayload(3);
+        assertEquals(-1, payload.indexOfDay(TEST_DATE - 1));
+        assertEquals(0, payload.indexOfDay(TEST_DATE));
+        assertEquals(1, payload.indexOfDay(TEST_DATE + DAY_IN_MILLIS + HOUR_IN_MILLIS));
+        assertEquals(2, payload.indexOfDay(TEST_DATE + 3 * DAY_IN_MILLIS - 1));
+        assertEquals(-1, payload.indexOfDay(TEST_DATE + 4 * DAY_IN_MILLIS));
+    }
+
+    private static void assertDecodeFails(String what, byte[] data) {
+        try {
+            ForecastPayload.decode(data);
+            fail("Error: Decoded a payload " + what);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.shared;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TestReceiptBatch extends TestCase {
+
+    private static ReceiptBatch createBatch() {
+        return new ReceiptBatch(3)
+                .add(1419062400000L, ReceiptBatch.STATUS_APPLIED, 12, 1980)
+                .add(1419062400001L, ReceiptBatch.STATUS_BAD_ICON, 340, 1650)
+                .add(1419062400002L, ReceiptBatch.STATUS_BAD_FORECAST, -5, Long.MAX_VALUE);
+    }
+
+    public void testRoundTrip() throws IOException {
+        ReceiptBatch decoded = ReceiptBatch.decode(createBatch().encode());
+
+        assertEquals(3, decoded.size());
+        assertEquals(1419062400000L, decoded.getVersion(0));
+        assertEquals(ReceiptBatch.STATUS_APPLIED, decoded.getStatus(0));
+        assertEquals(12, decoded.getApplyMillis(0));
+        assertEquals(1980, decoded.getHeldMillis(0));
+        assertEquals(ReceiptBatch.STATUS_BAD_ICON, decoded.getStatus(1));
+        assertEquals(ReceiptBatch.STATUS_BAD_FORECAST, decoded.getStatus(2));
+        assertEquals("Error: A negative time wasn't clamped", 0, decoded.getApplyMillis(2));
+        assertEquals("Error: A huge time wasn't clamped",
+                Integer.MAX_VALUE, decoded.getHeldMillis(2));
+    }
+
+    public void testBadBatches() {
+        byte[] data = createBatch().encode();
+        assertDecodeFails("truncated", Arrays.copyOf(data, data.length - 1));
+        assertDecodeFails("with trailing bytes", Arrays.copyOf(data, data.length + 1));
+
+        byte[] otherVersion = data.clone();
+        otherVersion[0] = (byte) (ReceiptBatch.VERSION + 1);
+        assertDecodeFails("in another version", otherVersion);
+
+        byte[] tooMany = data.clone();
+        tooMany[1] = (byte) (ReceiptBatch.MAX_RECEIPTS + 1);
+        assertDecodeFails("with too many receipts", tooMany);
+    }
+
+    private static void assertDecodeFails(String what, byte[] data) {
+        try {
+            ReceiptBatch.decode(data);
+            fail("Error: Decoded a batch " + what);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
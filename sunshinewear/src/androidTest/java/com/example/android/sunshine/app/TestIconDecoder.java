@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.util.DisplayMetrics;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+
+/*
+    Checks that icons from the phone are decoded to the size the face draws them at, and into
+    the pooled bitmaps once those are given back.
+ */
+public class TestIconDecoder extends AndroidTestCase {
+
+    private static final int ICON_SIZE = 30;
+
+    public void testInSampleSize() {
+        assertEquals(1, IconDecoder.calculateInSampleSize(30, 30, ICON_SIZE));
+        assertEquals(1, IconDecoder.calculateInSampleSize(59, 59, ICON_SIZE));
+        assertEquals(2, IconDecoder.calculateInSampleSize(60, 60, ICON_SIZE));
+        assertEquals(8, IconDecoder.calculateInSampleSize(320, 320, ICON_SIZE));
+        assertEquals("Error: Sampled below the icon size on the short side",
+                2, IconDecoder.calculateInSampleSize(320, 60, ICON_SIZE));
+        assertEquals(1, IconDecoder.calculateInSampleSize(10, 10, ICON_SIZE));
+    }
+
+    public void testDecodeToIconSize() {
+        IconDecoder decoder = new IconDecoder(null, ICON_SIZE);
+        byte[] png = encode(320);
+        try {
+            Bitmap icon = decoder.decode(png, png.length);
+            assertNotNull("Error: The icon wasn't decoded", icon);
+            assertEquals("Error: Wrong icon width", ICON_SIZE, icon.getWidth());
+            assertEquals("Error: Wrong icon height", ICON_SIZE, icon.getHeight());
+
+            decoder.recycle(icon);
+            Bitmap next = decoder.decode(png, png.length);
+            assertSame("Error: The pooled icon wasn't reused", icon, next);
+            assertEquals("Error: Wrong reused icon width", ICON_SIZE, next.getWidth());
+
+            assertNull("Error: Decoded something that isn't an image",
+                    decoder.decode(new byte[]{1, 2, 3}, 3));
+        } finally {
+            decoder.shutdown();
+        }
+    }
+
+    public void testDrawnAtIconSize() {
+        IconDecoder decoder = new IconDecoder(null, ICON_SIZE);
+        byte[] png = encode(320);
+        try {
+            Bitmap icon = decoder.decode(png, png.length);
+            assertNotNull("Error: The icon wasn't decoded", icon);
+
+            // Draw it the way the face does, on a canvas with a real screen density
+            int[] densities = {DisplayMetrics.DENSITY_HIGH, DisplayMetrics.DENSITY_XHIGH,
+                    mContext.getResources().getDisplayMetrics().densityDpi};
+            for (int density : densities) {
+                Bitmap screen = Bitmap.createBitmap(ICON_SIZE * 4, ICON_SIZE * 4,
+                        Bitmap.Config.ARGB_8888);
+                screen.setDensity(density);
+                Canvas canvas = new Canvas(screen);
+                canvas.drawBitmap(icon, 0, 0, null);
+
+                int right = 0;
+                int bottom = 0;
+                for (int y = 0; y < screen.getHeight(); y++) {
+                    for (int x = 0; x < screen.getWidth(); x++) {
+                        if (Color.alpha(screen.getPixel(x, y)) != 0) {
+                            right = Math.max(right, x + 1);
+                            bottom = Math.max(bottom, y + 1);
+                        }
+                    }
+                }
+                assertTrue("Error: Nothing was drawn at density " + density, right > 0);
+                assertTrue("Error: Icon drawn " + right + " pixels wide at density " + density,
+                        right <= ICON_SIZE);
+                assertTrue("Error: Icon drawn " + bottom + " pixels high at density " + density,
+                        bottom <= ICON_SIZE);
+                screen.recycle();
+            }
+        } finally {
+            decoder.shutdown();
+        }
+    }
+
+    private byte[] encode(int size) {
+        Bitmap art = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.art_clear);
+        Bitmap image = Bitmap.createScaledBitmap(art, size, size, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.compress(Bitmap.CompressFormat.PNG, 100, out);
+        image.recycle();
+        return out.toByteArray();
+    }
+}
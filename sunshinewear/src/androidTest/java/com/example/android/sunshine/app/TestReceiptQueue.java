@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.shared.ReceiptBatch;
+
+import java.io.File;
+
+/*
+    Checks that each of the phone's versions is receipted once, so an item the face pulls again
+    when it becomes visible sends the phone nothing, even after the face restarts.
+ */
+public class TestReceiptQueue extends AndroidTestCase {
+
+    private static final String NODE = "node";
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(mContext.getCacheDir(), "test_" + WatchForecastStore.RECEIPTS_FILE_NAME);
+        deleteDir();
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    public void testRepulledItemSendsNothing() throws Exception {
+        WatchForecastStore store = new WatchForecastStore(mDir);
+        ReceiptQueue receipts = new ReceiptQueue(store);
+        assertTrue("Error: A new version wasn't held back",
+                receipts.add(NODE, receipt(5), ReceiptBatch.STATUS_APPLIED));
+        ReceiptBatch batch = ReceiptBatch.decode(receipts.takeBatch());
+        assertEquals("Error: Wrong number of receipts", 1, batch.size());
+        assertEquals("Error: Wrong version receipted", 5, batch.getVersion(0));
+
+        // The same item, pulled again when the face becomes visible
+        assertFalse("Error: A version was receipted twice",
+                receipts.add(NODE, receipt(5), ReceiptBatch.STATUS_APPLIED));
+        assertTrue("Error: Something was held back for a version already receipted",
+                receipts.isEmpty());
+        assertNull("Error: A batch was sent for a version already receipted",
+                receipts.takeBatch());
+
+        assertFalse("Error: Receipted for a phone that doesn't want receipts",
+                receipts.add(NODE, receipt(0), ReceiptBatch.STATUS_APPLIED));
+        store.flush();
+        store.shutdown();
+
+        // After a restart
+        store = new WatchForecastStore(mDir);
+        receipts = new ReceiptQueue(store);
+        assertFalse("Error: A version was receipted again after a restart",
+                receipts.add(NODE, receipt(5), ReceiptBatch.STATUS_APPLIED));
+        assertTrue("Error: A newer version wasn't held back",
+                receipts.add(NODE, receipt(6), ReceiptBatch.STATUS_APPLIED));
+        assertEquals("Error: Wrong node", NODE, receipts.getNodeId());
+        store.shutdown();
+    }
+
+    public void testBatchFull() {
+        WatchForecastStore store = new WatchForecastStore(mDir);
+        ReceiptQueue receipts = new ReceiptQueue(store);
+        assertFalse("Error: An empty queue needs sending", receipts.isFullFor(NODE));
+        for (int i = 1; i <= ReceiptBatch.MAX_RECEIPTS; i++) {
+            receipts.add(NODE, receipt(i), ReceiptBatch.STATUS_APPLIED);
+        }
+        assertTrue("Error: A full batch wasn't sent first", receipts.isFullFor(NODE));
+        receipts.takeBatch();
+        receipts.add(NODE, receipt(100), ReceiptBatch.STATUS_APPLIED);
+        assertFalse("Error: A receipt for the same node didn't join the batch",
+                receipts.isFullFor(NODE));
+        assertTrue("Error: A receipt for another node joined the batch",
+                receipts.isFullFor("other"));
+        store.shutdown();
+    }
+
+    private static ReceiptQueue.Receipt receipt(long version) {
+        return new ReceiptQueue.Receipt(version, 0);
+    }
+}
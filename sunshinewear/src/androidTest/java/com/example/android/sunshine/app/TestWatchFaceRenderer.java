@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+/*
+    Renders the watch face frame after frame and checks that no frame allocates, so the
+    per-frame formatting doesn't creep back into onDraw, in interactive or ambient mode, and
+    that the static layer is only drawn again when something on it changes.  Also logs frame times with and without the
+    static layer.
+ */
+public class TestWatchFaceRenderer extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWatchFaceRenderer.class.getSimpleName();
+
+    private static final int SIZE = 320;
+    private static final int FRAMES = 600;
+
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    private Rect mBounds;
+    private WatchFaceRenderer mRenderer;
+    private Bitmap mIcon;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+        mBounds = new Rect(0, 0, SIZE, SIZE);
+        mRenderer = new WatchFaceRenderer(mContext.getResources());
+        mRenderer.applyWindowInsets(true);
+        mRenderer.setTemperatures("25°", "16°");
+        mIcon = new WeatherIcons(mContext.getResources()).getIcon(800);
+        mRenderer.setPhotoImage(mIcon);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRenderer.release();
+        mBitmap.recycle();
+        super.tearDown();
+    }
+
+    public void testDrawDoesNotAllocate() {
+        Time time = new Time();
+        // Midnight, so the frames' minutes all fall on one day
+        time.set(0, 0, 0, 1, 0, 2016);
+        long start = time.toMillis(false);
+
+        // The first frame formats the date
+        mRenderer.draw(mCanvas, mBounds, time);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                time.set(start + i * 60 * 1000L);
+                mRenderer.draw(mCanvas, mBounds, time);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals("Error: Drawing " + FRAMES + " frames allocated",
+                0, Debug.getThreadAllocCount());
+    }
+
+    public void testDateFollowsDay() {
+        Time time = new Time();
+        time.set(0, 59, 23, 1, 0, 2016);
+        mRenderer.draw(mCanvas, mBounds, time);
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            time.set(time.toMillis(false) + 60 * 1000L);
+            mRenderer.draw(mCanvas, mBounds, time);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertTrue("Error: The date wasn't formatted again for the next day",
+                Debug.getThreadAllocCount() > 0);
+    }
+
+    public void testStaticLayerBuiltOnce() {
+        Time time = new Time();
+        time.set(0, 0, 0, 1, 0, 2016);
+        long start = time.toMillis(false);
+        for (int i = 0; i < FRAMES; i++) {
+            time.set(start + i * 60 * 1000L);
+            mRenderer.draw(mCanvas, mBounds, time);
+        }
+        assertEquals("Error: Wrong frame count", FRAMES, mRenderer.getFrameCount());
+        assertEquals("Error: The static layer was built again for the time alone",
+                1, mRenderer.getLayerBuildCount());
+
+        mRenderer.setTemperatures("26°", "16°");
+        mRenderer.draw(mCanvas, mBounds, time);
+        mRenderer.toggleBackground();
+        mRenderer.draw(mCanvas, mBounds, time);
+        assertEquals("Error: The static layer wasn't built again after changes",
+                3, mRenderer.getLayerBuildCount());
+
+        mRenderer.setAmbient(true);
+        mRenderer.draw(mCanvas, mBounds, time);
+        mRenderer.draw(mCanvas, mBounds, time);
+        mRenderer.setAmbient(false);
+        mRenderer.draw(mCanvas, mBounds, time);
+        assertEquals("Error: Ambient mode changed the static layer",
+                3, mRenderer.getLayerBuildCount());
+    }
+
+    public void testAmbientDrawDoesNotAllocate() {
+        mRenderer.setAmbientProperties(true, true);
+        mRenderer.setAmbient(true);
+        Time time = new Time();
+        time.set(0, 0, 0, 1, 0, 2016);
+        long start = time.toMillis(false);
+        mRenderer.draw(mCanvas, mBounds, time);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                time.set(start + i * 60 * 1000L);
+                mRenderer.draw(mCanvas, mBounds, time);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals("Error: Drawing " + FRAMES + " ambient frames allocated",
+                0, Debug.getThreadAllocCount());
+        assertEquals("Error: Ambient frames built the static layer",
+                0, mRenderer.getLayerBuildCount());
+    }
+
+    public void testAmbientIcons() {
+        Bitmap gray = WatchFaceRenderer.createGray(mIcon);
+        Bitmap outline = WatchFaceRenderer.createOutline(mIcon);
+        int opaque = 0;
+        int lit = 0;
+        for (int y = 0; y < mIcon.getHeight(); y++) {
+            for (int x = 0; x < mIcon.getWidth(); x++) {
+                int pixel = gray.getPixel(x, y);
+                assertTrue("Error: The gray icon has color at " + x + "," + y,
+                        Color.red(pixel) == Color.green(pixel)
+                                && Color.green(pixel) == Color.blue(pixel)
+                                || Color.alpha(pixel) == 0);
+                if (Color.alpha(mIcon.getPixel(x, y)) >= 0x80) {
+                    opaque++;
+                }
+                if (outline.getPixel(x, y) != 0) {
+                    lit++;
+                    assertTrue("Error: The outline is outside the icon at " + x + "," + y,
+                            Color.alpha(mIcon.getPixel(x, y)) >= 0x80);
+                }
+            }
+        }
+        assertTrue("Error: The outline is empty", lit > 0);
+        assertTrue("Error: The outline lights the whole icon", lit < opaque);
+        gray.recycle();
+        outline.recycle();
+    }
+
+    public void testFrameTimeBenchmark() {
+        Time time = new Time();
+        time.set(0, 0, 0, 1, 0, 2016);
+        long start = time.toMillis(false);
+
+        for (int i = 0; i < FRAMES; i++) {
+            time.set(start + i * 60 * 1000L);
+            mRenderer.draw(mCanvas, mBounds, time);
+        }
+        long layered = mRenderer.getMeanFrameNanos();
+
+        // As every frame was before the static layer
+        mRenderer.resetFrameStats();
+        for (int i = 0; i < FRAMES; i++) {
+            time.set(start + i * 60 * 1000L);
+            mRenderer.setPhotoImage(mIcon);
+            mRenderer.draw(mCanvas, mBounds, time);
+        }
+        long repainted = mRenderer.getMeanFrameNanos();
+
+        Log.i(LOG_TAG, "Frame with static layer: " + layered / 1000 + "us, repainting it: "
+                + repainted / 1000 + "us");
+    }
+}
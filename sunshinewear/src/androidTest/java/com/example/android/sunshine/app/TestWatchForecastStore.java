@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.shared.ForecastPayload;
+
+import java.io.File;
+import java.util.Arrays;
+
+/*
+    Checks that the saved forecast and icon come back as they were saved, and logs how long
+    loading them takes, which the face waits for when it starts.
+ */
+public class TestWatchForecastStore extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWatchForecastStore.class.getSimpleName();
+
+    private static final int LOADS = 50;
+    // When the phone synced the forecast
+    private static final long SYNCED_AT = 1419033600000L;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(mContext.getCacheDir(), "test_" + WatchForecastStore.FILE_NAME);
+        deleteDir();
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        WatchForecastStore store = new WatchForecastStore(mDir);
+        assertNull("Error: Loaded a forecast that was never saved", store.load());
+
+        byte[] forecast = createForecast();
+        store.save(forecast, SYNCED_AT, null, null);
+        store.flush();
+        WatchForecastStore.Entry entry = store.load();
+        assertNotNull("Error: The forecast wasn't saved", entry);
+        assertTrue("Error: The forecast read back differs",
+                Arrays.equals(forecast, entry.forecast));
+        assertNull("Error: Found an icon that was never saved", entry.icon);
+        assertEquals("Error: Wrong sync time", SYNCED_AT, entry.syncedAt);
+
+        Bitmap icon = new WeatherIcons(mContext.getResources()).getIcon(800)
+                .copy(Bitmap.Config.ARGB_8888, true);
+        store.save(forecast, SYNCED_AT, "digest", icon);
+        store.flush();
+        store.shutdown();
+
+        // As a new process would
+        entry = new WatchForecastStore(mDir).load();
+        assertEquals("Error: Wrong icon digest", "digest", entry.iconDigest);
+        assertNotNull("Error: The icon wasn't saved", entry.icon);
+        assertTrue("Error: The icon read back differs", icon.sameAs(entry.icon));
+        icon.recycle();
+        entry.icon.recycle();
+    }
+
+    public void testLoadBenchmark() throws Exception {
+        WatchForecastStore store = new WatchForecastStore(mDir);
+        Bitmap icon = new WeatherIcons(mContext.getResources()).getIcon(800)
+                .copy(Bitmap.Config.ARGB_8888, true);
+        store.save(createForecast(), SYNCED_AT, "digest", icon);
+        store.flush();
+        icon.recycle();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < LOADS; i++) {
+            store.load().icon.recycle();
+        }
+        long micros = (System.nanoTime() - start) / LOADS / 1000;
+        Log.i(LOG_TAG, "Loading the saved forecast and icon: " + micros + "us");
+        store.shutdown();
+    }
+
+    private byte[] createForecast() {
+        long day = 24 * 60 * 60 * 1000L;
+        long today = System.currentTimeMillis() / day * day;
+        ForecastPayload.Builder builder =
+                new ForecastPayload.Builder(ForecastPayload.FLAG_METRIC, 1, 14);
+        for (int i = 0; i < 14; i++) {
+            builder.add(today + i * day, 800, 25 + i, 16 - i);
+        }
+        return builder.build().encode();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the icons the phone sends, one at a time on its own thread, straight to the size the
+ * face draws them at.  A new request cancels the one before it, so a burst of updates only
+ * decodes the last icon.  Icons that are no longer shown are given back with {@link #recycle}
+ * and decoded into again, so the watch doesn't keep allocating icon sized bitmaps.
+ */
+public class IconDecoder {
+    private static final String LOG_TAG = IconDecoder.class.getSimpleName();
+
+    // How long to wait for the asset's file from the data layer
+    private static final long ASSET_TIMEOUT_SECONDS = 30;
+    // Icons kept for reuse; one is shown while the next is decoded
+    private static final int POOL_SIZE = 2;
+
+    /**
+     * Called on the main thread with the decoded icon, or null if it couldn't be decoded.
+     */
+    public interface Listener {
+        void onIconDecoded(Bitmap icon);
+    }
+
+    private final GoogleApiClient mGoogleApiClient;
+    private final int mIconSize;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ArrayList<Bitmap> mPool = new ArrayList<>(POOL_SIZE);
+
+    // Only touched on the decode thread
+    private byte[] mBuffer = new byte[16 * 1024];
+    // The sampled image, decoded into again for the next icon
+    private Bitmap mSampled;
+    private final Rect mIconRect = new Rect();
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // Bumped for each request, so a superseded decode is dropped
+    private volatile int mGeneration;
+    private Future<?> mPending;
+
+    /**
+     * @param iconSize the width and height, in pixels, the face draws the icon at.
+     */
+    public IconDecoder(GoogleApiClient googleApiClient, int iconSize) {
+        mGoogleApiClient = googleApiClient;
+        mIconSize = iconSize;
+    }
+
+    /**
+     * Decodes the asset, cancelling any decode still pending.  Call on the main thread.
+     */
+    public void decode(final Asset asset, final Listener listener) {
+        cancel();
+        final int generation = mGeneration;
+        mPending = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap icon = generation == mGeneration ? load(asset) : null;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            recycle(icon);
+                            return;
+                        }
+                        mPending = null;
+                        listener.onIconDecoded(icon);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops the pending decode, if any.  Call on the main thread.
+     */
+    public void cancel() {
+        mGeneration++;
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+
+    /**
+     * Gives back an icon from {@link #decode} that is no longer drawn, to be decoded into again.
+     */
+    public void recycle(Bitmap icon) {
+        if (icon == null) {
+            return;
+        }
+        synchronized (mPool) {
+            if (mPool.size() < POOL_SIZE && icon.isMutable()) {
+                mPool.add(icon);
+                return;
+            }
+        }
+        icon.recycle();
+    }
+
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdownNow();
+        synchronized (mPool) {
+            for (Bitmap icon : mPool) {
+                icon.recycle();
+            }
+            mPool.clear();
+        }
+        // The sampled image belongs to the decode thread, which may still be running; it's
+        // left to the collector
+    }
+
+    private Bitmap load(Asset asset) {
+        DataApi.GetFdForAssetResult result = Wearable.DataApi.getFdForAsset(
+                mGoogleApiClient, asset).await(ASSET_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        InputStream in = result.getInputStream();
+        if (in == null) {
+            Log.w(LOG_TAG, "Requested an unknown Asset: " + result.getStatus());
+            return null;
+        }
+        try {
+            int length = read(in);
+            return decode(mBuffer, length);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't read the icon", e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing more to read
+            }
+        }
+    }
+
+    /**
+     * Reads the stream into the reused buffer, growing it if needed.
+     *
+     * @return the number of bytes read.
+     */
+    private int read(InputStream in) throws IOException {
+        int length = 0;
+        int count;
+        while ((count = in.read(mBuffer, length, mBuffer.length - length)) != -1) {
+            length += count;
+            if (length == mBuffer.length) {
+                byte[] buffer = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, buffer, 0, length);
+                mBuffer = buffer;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Decodes an encoded image to the icon size, into a pooled bitmap when there is one.
+     * <p>
+     * The image is sampled down while it's decoded and then drawn scaled into the icon, rather
+     * than scaled by the decoder through its densities, which would leave the icon with a
+     * density the face's canvas scales it by again.  The icon has no density of its own, so it's
+     * drawn pixel for pixel.
+     */
+    Bitmap decode(byte[] data, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(LOG_TAG, "Not an image");
+            return null;
+        }
+
+        // Sample down to the smallest power of two that's still no smaller than the icon
+        int sampleSize = calculateInSampleSize(options.outWidth, options.outHeight, mIconSize);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inScaled = false;
+        options.inMutable = true;
+        options.inBitmap = mSampled;
+        Bitmap sampled;
+        try {
+            sampled = BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            // The last sampled image is too small for this one
+            options.inBitmap = null;
+            sampled = BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        if (sampled == null) {
+            Log.w(LOG_TAG, "Couldn't decode the icon");
+            return null;
+        }
+        if (mSampled != null && mSampled != sampled) {
+            mSampled.recycle();
+        }
+        mSampled = sampled;
+
+        // Scale the rest of the way, keeping the image's shape, centred in the icon
+        int width = sampled.getWidth();
+        int height = sampled.getHeight();
+        if (width >= height) {
+            int scaledHeight = Math.max(1, mIconSize * height / width);
+            mIconRect.set(0, 0, mIconSize, scaledHeight);
+            mIconRect.offset(0, (mIconSize - scaledHeight) / 2);
+        } else {
+            int scaledWidth = Math.max(1, mIconSize * width / height);
+            mIconRect.set(0, 0, scaledWidth, mIconSize);
+            mIconRect.offset((mIconSize - scaledWidth) / 2, 0);
+        }
+        Bitmap icon = takeFromPool();
+        if (icon == null) {
+            icon = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        }
+        icon.setDensity(Bitmap.DENSITY_NONE);
+        icon.eraseColor(Color.TRANSPARENT);
+        new Canvas(icon).drawBitmap(sampled, null, mIconRect, mScalePaint);
+        return icon;
+    }
+
+    private Bitmap takeFromPool() {
+        synchronized (mPool) {
+            while (!mPool.isEmpty()) {
+                Bitmap icon = mPool.remove(mPool.size() - 1);
+                if (icon.getWidth() == mIconSize && icon.getHeight() == mIconSize) {
+                    return icon;
+                }
+                icon.recycle();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the largest power of two that keeps both sides at least {@code size}.
+     */
+    static int calculateInSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= size && height / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
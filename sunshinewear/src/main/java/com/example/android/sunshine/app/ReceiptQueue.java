@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.os.SystemClock;
+
+import com.example.android.sunshine.shared.ReceiptBatch;
+
+import java.util.ArrayList;
+
+/**
+ * The face's receipts for the phone's items, held back to go to the phone in batches.
+ * <p>
+ * The face pulls the phone's item again every time it becomes visible, and the phone has no use
+ * for a second receipt for a version it has heard about, so each version is only receipted
+ * once.  The last version receipted is kept in the {@link WatchForecastStore}, so that holds
+ * across restarts too.  Call on the main thread.
+ */
+public class ReceiptQueue {
+
+    /**
+     * A receipt for one of the phone's items, until it's sent.
+     */
+    public static class Receipt {
+        final long version;
+        final long receivedAt;
+        int status;
+        long appliedAt;
+
+        public Receipt(long version, long receivedAt) {
+            this.version = version;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private final WatchForecastStore mStore;
+    private final ArrayList<Receipt> mReceipts = new ArrayList<>();
+    private String mNodeId;
+    private long mReceiptedVersion;
+
+    public ReceiptQueue(WatchForecastStore store) {
+        mStore = store;
+        mReceiptedVersion = store.loadReceiptedVersion();
+    }
+
+    /**
+     * @return false if the receipt would join the ones held back; true if those have to be
+     *         sent first, as they're for another node or there are as many as a batch holds.
+     */
+    public boolean isFullFor(String nodeId) {
+        return !mReceipts.isEmpty() && (!nodeId.equals(mNodeId)
+                || mReceipts.size() == ReceiptBatch.MAX_RECEIPTS);
+    }
+
+    /**
+     * Holds the receipt back, unless its version has been receipted before.
+     *
+     * @return true if it was held back, false if there's nothing to send for it.
+     */
+    public boolean add(String nodeId, Receipt receipt, int status) {
+        // A version of 0 is from a phone that doesn't want receipts
+        if (receipt.version == 0 || receipt.version <= mReceiptedVersion) {
+            return false;
+        }
+        receipt.status = status;
+        receipt.appliedAt = SystemClock.elapsedRealtime();
+        mReceipts.add(receipt);
+        mNodeId = nodeId;
+        mReceiptedVersion = receipt.version;
+        mStore.saveReceiptedVersion(receipt.version);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return mReceipts.isEmpty();
+    }
+
+    /**
+     * @return the node the receipts held back are for.
+     */
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Takes the receipts held back, encoded as one batch.
+     *
+     * @return the batch, or null if there are none.
+     */
+    public byte[] takeBatch() {
+        if (mReceipts.isEmpty()) {
+            return null;
+        }
+        long now = SystemClock.elapsedRealtime();
+        ReceiptBatch batch = new ReceiptBatch(mReceipts.size());
+        for (Receipt receipt : mReceipts) {
+            batch.add(receipt.version, receipt.status, receipt.appliedAt - receipt.receivedAt,
+                    now - receipt.appliedAt);
+        }
+        mReceipts.clear();
+        return batch.encode();
+    }
+}
@@ -22,61 +22,73 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.Typeface;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.wearable.watchface.CanvasWatchFaceService;
 import android.support.wearable.watchface.WatchFaceStyle;
+import android.text.TextUtils;
 import android.text.format.Time;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.WindowInsets;
 
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.shared.ForecastPayload;
+import com.example.android.sunshine.shared.ReceiptBatch;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import java.io.InputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Digital watch face with seconds. In ambient mode, the seconds aren't displayed. On devices with
- * low-bit ambient mode, the text is drawn without anti-aliasing in ambient mode.
+ * low-bit ambient mode, the text is drawn without anti-aliasing in ambient mode, and on those or
+ * devices that need burn-in protection the icon is drawn as an outline.
  */
 public class SunshineWatchFaceService extends CanvasWatchFaceService {
-    private static final Typeface NORMAL_TYPEFACE =
-            Typeface.create(Typeface.SANS_SERIF
-                    , Typeface.NORMAL);
-
     /**
      * Update rate in milliseconds for interactive mode. We update once a second since seconds are
      * displayed in interactive mode.
      */
     private static final long INTERACTIVE_UPDATE_RATE_MS = TimeUnit.SECONDS.toMillis(1);
     final String TAG = SunshineWatchFaceService.class.getSimpleName();
+    // Roughly when the process started, to time the first frame with a forecast
+    private static final long LOADED_AT_MS = SystemClock.elapsedRealtime();
+    // How long after the phone's last sync a forecast is shown as stale; the phone syncs every
+    // 3 hours, and tells us again within 2 of them that a forecast that hasn't changed is current
+    private static final long STALE_MS = TimeUnit.HOURS.toMillis(6);
     /**
      * Handler message id for updating the time periodically in interactive mode.
      */
     private static final int MSG_UPDATE_TIME = 0;
+    /**
+     * Handler message id for sending the receipts held back for a batch.
+     */
+    private static final int MSG_SEND_RECEIPTS = 1;
+    // How long a receipt waits for others to join its batch
+    private static final long RECEIPT_DELAY_MS = TimeUnit.SECONDS.toMillis(2);
 
     GoogleApiClient mGoogleApiClient;
 
@@ -100,6 +112,9 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                     case MSG_UPDATE_TIME:
                         engine.handleUpdateTimeMessage();
                         break;
+                    case MSG_SEND_RECEIPTS:
+                        engine.sendReceipts();
+                        break;
                 }
             }
         }
@@ -108,69 +123,73 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
     private class Engine extends CanvasWatchFaceService.Engine implements
             GoogleApiClient.ConnectionCallbacks,
             GoogleApiClient.OnConnectionFailedListener,
-            DataApi.DataListener, OnLoadBitmapListener{
+            DataApi.DataListener, IconDecoder.Listener {
 
 
 
         final Handler mUpdateTimeHandler = new EngineHandler(this);
         boolean mRegisteredTimeZoneReceiver = false;
-        Paint mBackgroundPaint;
-        Paint mTextPaint;
-        Paint mDateTextPaint;
-        Paint mLinePaint;
-        Paint mTempPaint;
+        WatchFaceRenderer mRenderer;
 
-        boolean mAmbient;
         Time mTime;
         final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                mTime.clear(intent.getStringExtra("time-zone"));
+                String timeZone = intent.getStringExtra("time-zone");
+                mTime.clear(timeZone);
                 mTime.setToNow();
+                mRenderer.setTimeZone(TimeZone.getTimeZone(timeZone));
+                updateToday();
+                invalidate();
             }
         };
-        int mTapCount;
 
-        float mXOffset;
-        float mYOffset;
-
-        //Date offsets
-        float mDateXOffset;
-        float mDateYOffset;
-
-        //Line Offsets
-        float mLineXStart;
-        float mLineXEnd;
-        float mLineY;
-
-        float mTempYOffset;
-        float mHighTempXOffset;
-        float mLowTempXOffset;
-
-        //High and Low temps
+        //The forecast from the phone, as sent and decoded, and today's high and low from it
+        byte[] mForecastData;
+        // When the phone last synced it, by its clock, to tell when it's stale
+        long mForecastSyncedAt;
+        // Saves the forecast, and shows it as soon as we start next time
+        WatchForecastStore mStore;
+        boolean mDrewForecast;
+        // The digests of the phone's icon shown, and of the one being decoded
+        String mIconDigest;
+        String mPendingIconDigest;
+        ForecastPayload mForecast;
+        // The day of the forecast shown
+        int mToday;
         String mHighTemp = "";
         String mLowTemp = "";
 
-        //Weather Image
-        Bitmap mPhotoImage;
-        float mPhotoXOffset;
-        float mPhotoYOffset;
+        //Weather Image, from the bundled art unless the phone sends its own
+        WeatherIcons mWeatherIcons;
+        IconDecoder mIconDecoder;
+        // The icon the phone sent, if that's the one shown
+        Bitmap mDecodedIcon;
 
         //Keys to the data sent from the phone
         private static final String TEMP_PATH = "/temp";
-        private static final String HIGH_TEMP_KEY = "hightemp";
-        private static final String LOW_TEMP_KEY = "lowtemp";
+        private static final String FORECAST_KEY = "forecast";
+        // Only sent for art packs other than Sunshine's, which is bundled
         private static final String IMAGE_KEY = "forecast_icon";
 
-        private static final String DATA_ITEM_RECEIVED_PATH = "/data-item-received";
+        // The version the phone stamps on each item, for our receipt
+        private static final String VERSION_KEY = "version";
+        // When the phone last synced the forecast
+        private static final String SYNCED_AT_KEY = "synced_at";
 
-        /**
-         * Whether the display supports fewer bits for each color in ambient mode. When true, we
-         * disable anti-aliasing in ambient mode.
-         */
-        boolean mLowBitAmbient;
+        // Receipts for the phone's items, sent back in batches
+        private static final String DATA_ITEM_RECEIVED_PATH = "/data-item-received";
+        ReceiptQueue mReceipts;
+        // The receipt for the item whose icon is being decoded
+        ReceiptQueue.Receipt mPendingReceipt;
+        String mPendingReceiptNodeId;
 
+        // The send of the last receipts, which the connection is kept open for
+        PendingResult<MessageApi.SendMessageResult> mLastSend;
 
+        // When the face last became visible, to time the connection and the first data
+        long mVisibleAtMs;
+        boolean mWaitingForFirstData;
 
         @Override
         public void onCreate(SurfaceHolder holder) {
@@ -183,61 +202,50 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                     .setAcceptsTapEvents(true)
                     .build());
 
-            //Get offsets from dimensions
             Resources resources = SunshineWatchFaceService.this.getResources();
-            mYOffset = resources.getDimension(R.dimen.digital_y_offset);
-            mDateYOffset = resources.getDimension(R.dimen.date_y_offset);
-            mTempYOffset = resources.getDimension(R.dimen.temp_y_offset);
-
-            mLineXStart = resources.getDimension(R.dimen.line_x_start);
-            mLineXEnd = resources.getDimension(R.dimen.line_x_end);
-            mLineY = resources.getDimension(R.dimen.line_y);
-            mBackgroundPaint = new Paint();
-            mBackgroundPaint.setColor(resources.getColor(R.color.background));
-
-            mTextPaint = new Paint();
-            mTextPaint = createTextPaint(resources.getColor(R.color.digital_text));
-
-            //Create paint for date
-            mDateTextPaint = new Paint();
-            mDateTextPaint = createTextPaint(resources.getColor(R.color.digital_text_grey));
-
-            //Create paint for divider line
-            mLinePaint = new Paint();
-            mLinePaint.setColor(resources.getColor(R.color.divider_line));
-            mLinePaint.setStrokeWidth(1f);
-            mLinePaint.setStyle(Paint.Style.STROKE);
-
-            //Create high/low temperature paint
-            mTempPaint = new Paint();
-            mTempPaint = createTextPaint(resources.getColor(R.color.digital_text));
-
+            mRenderer = new WatchFaceRenderer(resources);
 
             mTime = new Time();
+            mWeatherIcons = new WeatherIcons(resources);
 
-            //Connect to Google Play Services to receive data from the phone
+            //Google Play Services, to receive data from the phone while we're visible
             mGoogleApiClient = new GoogleApiClient.Builder(SunshineWatchFaceService.this)
                     .addApi(Wearable.API)
                     .addConnectionCallbacks(this)
                     .addOnConnectionFailedListener(this)
                     .build();
-            mGoogleApiClient.connect();
+
+            mIconDecoder = new IconDecoder(mGoogleApiClient,
+                    resources.getDimensionPixelSize(R.dimen.wearable_icon_dimen));
+
+            // Show the last forecast until the data layer has a newer one
+            mStore = new WatchForecastStore(getFilesDir());
+            mReceipts = new ReceiptQueue(mStore);
+            long start = SystemClock.elapsedRealtime();
+            WatchForecastStore.Entry saved = mStore.load();
+            if (saved != null && showForecast(saved.forecast, saved.syncedAt)) {
+                if (saved.icon != null && mToday == 0) {
+                    mIconDigest = saved.iconDigest;
+                    setPhotoImage(saved.icon, true);
+                } else {
+                    setPhotoImage(getBundledIcon(), false);
+                }
+                Log.d(TAG, "Loaded the saved forecast in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
         }
 
         @Override
         public void onDestroy() {
             mUpdateTimeHandler.removeMessages(MSG_UPDATE_TIME);
+            mUpdateTimeHandler.removeMessages(MSG_SEND_RECEIPTS);
+            disconnect();
+            mRenderer.release();
+            mIconDecoder.shutdown();
+            mStore.shutdown();
             super.onDestroy();
         }
 
-        private Paint createTextPaint(int textColor) {
-            Paint paint = new Paint();
-            paint.setColor(textColor);
-            paint.setTypeface(NORMAL_TYPEFACE);
-            paint.setAntiAlias(true);
-            return paint;
-        }
-
         @Override
         public void onVisibilityChanged(boolean visible) {
             super.onVisibilityChanged(visible);
@@ -246,10 +254,20 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                 registerReceiver();
 
                 // Update time zone in case it changed while we weren't visible.
-                mTime.clear(TimeZone.getDefault().getID());
+                TimeZone timeZone = TimeZone.getDefault();
+                mTime.clear(timeZone.getID());
                 mTime.setToNow();
+                mRenderer.setTimeZone(timeZone);
+                // It may be another day too, and pulling the forecast won't change it if the
+                // phone has nothing new
+                updateToday();
+                updateStale();
+
+                connect();
             } else {
                 unregisterReceiver();
+                disconnect();
+                logFrameStats();
             }
 
             // Whether the timer should be running depends on whether we're visible (as well as
@@ -279,44 +297,15 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
             super.onApplyWindowInsets(insets);
 
             // Load resources that have alternate values for round watches.
-            Resources resources = SunshineWatchFaceService.this.getResources();
-            boolean isRound = insets.isRound();
-            mXOffset = resources.getDimension(isRound
-                    ? R.dimen.digital_x_offset_round : R.dimen.digital_x_offset);
-            float textSize = resources.getDimension(isRound
-                    ? R.dimen.digital_text_size_round : R.dimen.digital_text_size);
-            mTextPaint.setTextSize(textSize);
-
-            //Set Date offsets
-            mDateXOffset = resources.getDimension(isRound
-                    ? R.dimen.date_x_offset_round : R.dimen.date_x_offset);
-            float dateTextSize = resources.getDimension(isRound
-                    ? R.dimen.date_text_size_round : R.dimen.date_text_size);
-            mDateTextPaint.setTextSize(dateTextSize);
-
-            //Set Temperature offsets
-            mHighTempXOffset = resources.getDimension(isRound
-                    ? R.dimen.high_temp_x_offset_round : R.dimen.high_temp_x_offset);
-            mLowTempXOffset = resources.getDimension(isRound
-                    ? R.dimen.low_temp_x_offset_round : R.dimen.low_temp_x_offset);
-
-            float tempTextSize = resources.getDimension(isRound
-                    ? R.dimen.temp_text_size_round : R.dimen.temp_text_size);
-
-            //Set Photo offsets
-            mPhotoXOffset = resources.getDimension(isRound
-            ? R.dimen.icon_x_offset_round : R.dimen.icon_x_offset);
-            mPhotoYOffset = resources.getDimension(isRound
-            ? R.dimen.icon_y_offset_round : R.dimen.icon_y_offset);
-            mTempPaint.setTextSize(tempTextSize);
-
-
+            mRenderer.applyWindowInsets(insets.isRound());
         }
 
         @Override
         public void onPropertiesChanged(Bundle properties) {
             super.onPropertiesChanged(properties);
-            mLowBitAmbient = properties.getBoolean(PROPERTY_LOW_BIT_AMBIENT, false);
+            mRenderer.setAmbientProperties(
+                    properties.getBoolean(PROPERTY_LOW_BIT_AMBIENT, false),
+                    properties.getBoolean(PROPERTY_BURN_IN_PROTECTION, false));
         }
 
         @Override
@@ -328,14 +317,8 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
         @Override
         public void onAmbientModeChanged(boolean inAmbientMode) {
             super.onAmbientModeChanged(inAmbientMode);
-            if (mAmbient != inAmbientMode) {
-                mAmbient = inAmbientMode;
-                if (mLowBitAmbient) {
-                    mTextPaint.setAntiAlias(!inAmbientMode);
-                    mDateTextPaint.setAntiAlias(!inAmbientMode);
-                }
-                invalidate();
-            }
+            mRenderer.setAmbient(inAmbientMode);
+            invalidate();
 
             // Whether the timer should be running depends on whether we're visible (as well as
             // whether we're in ambient mode), so we may need to start or stop the timer.
@@ -348,7 +331,6 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
          */
         @Override
         public void onTapCommand(int tapType, int x, int y, long eventTime) {
-            Resources resources = SunshineWatchFaceService.this.getResources();
             switch (tapType) {
                 case TAP_TYPE_TOUCH:
                     // The user has started touching the screen.
@@ -358,9 +340,7 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                     break;
                 case TAP_TYPE_TAP:
                     // The user has completed the tap gesture.
-                    mTapCount++;
-                    mBackgroundPaint.setColor(resources.getColor(mTapCount % 2 == 0 ?
-                            R.color.background : R.color.background2));
+                    mRenderer.toggleBackground();
                     break;
             }
             invalidate();
@@ -368,35 +348,31 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
 
         @Override
         public void onDraw(Canvas canvas, Rect bounds) {
-            // Draw the background.
-            if (isInAmbientMode()) {
-                canvas.drawColor(Color.BLACK);
-            } else {
-                canvas.drawRect(0, 0, bounds.width(), bounds.height(), mBackgroundPaint);
-            }
-
-
-            // Draw H:MM in ambient mode or H:MM:SS in interactive mode.
             mTime.setToNow();
+            // Move on to the next day's forecast at midnight, without waiting for the phone
+            updateToday();
+            mRenderer.draw(canvas, bounds, mTime);
+            if (!mDrewForecast && mForecast != null) {
+                mDrewForecast = true;
+                Log.d(TAG, "First frame with a forecast "
+                        + (SystemClock.elapsedRealtime() - LOADED_AT_MS) + "ms after starting");
+            }
+        }
 
-
-            String text = String.format("%02d:%02d", mTime.hour, mTime.minute);
-
-            canvas.drawText(text, mXOffset, mYOffset, mTextPaint);
-
-            Date currentDate = new Date();
-            String strCurrentDate = new SimpleDateFormat("MMM d, yyyy").format(currentDate);
-            canvas.drawText(strCurrentDate,mDateXOffset,mDateYOffset,mDateTextPaint);
-
-            float centerX = bounds.width() / 2f;
-            canvas.drawLine(centerX - 30,mLineY,centerX + 30,mLineY,mLinePaint);
-
-            canvas.drawText(mHighTemp,mHighTempXOffset,mTempYOffset,mTempPaint);
-            canvas.drawText(mLowTemp, mLowTempXOffset, mTempYOffset, mTempPaint);
-
-            if(mPhotoImage != null)
-               canvas.drawBitmap(mPhotoImage,mPhotoXOffset,mPhotoYOffset,null);
-
+        /**
+         * Logs how long frames took while the face was visible.
+         */
+        private void logFrameStats() {
+            if (mRenderer.getFrameCount() == 0) {
+                return;
+            }
+            Log.d(TAG, "Frames: " + mRenderer.getFrameCount() + ", "
+                    + TimeUnit.NANOSECONDS.toMicros(mRenderer.getMeanFrameNanos()) + "us mean, "
+                    + TimeUnit.NANOSECONDS.toMicros(mRenderer.getMaxFrameNanos()) + "us max; "
+                    + "static layer built " + mRenderer.getLayerBuildCount() + " times, "
+                    + TimeUnit.NANOSECONDS.toMicros(mRenderer.getMeanLayerBuildNanos())
+                    + "us mean");
+            mRenderer.resetFrameStats();
         }
 
         /**
@@ -431,12 +407,89 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
             }
         }
 
+        /**
+         * Connects to the data layer, to listen for the phone's data and to pull what's there now.
+         */
+        private void connect() {
+            mVisibleAtMs = SystemClock.elapsedRealtime();
+            mWaitingForFirstData = true;
+            if (mLastSend != null) {
+                // Still connected from last time, waiting on the receipts
+                mLastSend = null;
+                if (mGoogleApiClient.isConnected()) {
+                    onConnected(null);
+                    return;
+                }
+            }
+            if (!mGoogleApiClient.isConnected() && !mGoogleApiClient.isConnecting()) {
+                mGoogleApiClient.connect();
+            }
+        }
+
+        private void disconnect() {
+            mWaitingForFirstData = false;
+            // The decode needs the connection; the icon is pulled again when we're visible
+            mIconDecoder.cancel();
+            mPendingIconDigest = null;
+            mPendingReceipt = null;
+            if (mGoogleApiClient.isConnected()) {
+                Wearable.DataApi.removeListener(mGoogleApiClient, this);
+            }
+            // Disconnecting cancels a send that hasn't gone yet, so the last receipts get to
+            // the phone first.  If we're not connected they wait for the next connection.
+            final PendingResult<MessageApi.SendMessageResult> sent = sendReceipts();
+            mLastSend = sent;
+            if (sent != null) {
+                sent.setResultCallback(new ResultCallback<MessageApi.SendMessageResult>() {
+                    @Override
+                    public void onResult(MessageApi.SendMessageResult result) {
+                        if (!result.getStatus().isSuccess()) {
+                            Log.w(TAG, "Couldn't send the receipts: " + result.getStatus());
+                        }
+                        // Unless we've become visible again since
+                        if (mLastSend == sent) {
+                            mLastSend = null;
+                            mGoogleApiClient.disconnect();
+                        }
+                    }
+                });
+                return;
+            }
+            if (mGoogleApiClient.isConnected() || mGoogleApiClient.isConnecting()) {
+                mGoogleApiClient.disconnect();
+            }
+        }
+
         @Override
         public void onConnected(Bundle bundle) {
-
-            Log.e(TAG,"onConnected()");
+            Log.d(TAG, "Connected in " + (SystemClock.elapsedRealtime() - mVisibleAtMs) + "ms");
             Wearable.DataApi.addListener(mGoogleApiClient, this);
+            // Receipts held back while we weren't connected
+            sendReceipts();
 
+            // Pull the forecast now, rather than wait for the phone to push another one
+            Uri uri = new Uri.Builder()
+                    .scheme(PutDataRequest.WEAR_URI_SCHEME)
+                    .path(TEMP_PATH)
+                    .build();
+            Wearable.DataApi.getDataItems(mGoogleApiClient, uri)
+                    .setResultCallback(new ResultCallback<DataItemBuffer>() {
+                        @Override
+                        public void onResult(DataItemBuffer dataItems) {
+                            try {
+                                if (!dataItems.getStatus().isSuccess()) {
+                                    Log.w(TAG, "Couldn't get the forecast: "
+                                            + dataItems.getStatus());
+                                    return;
+                                }
+                                for (DataItem item : dataItems) {
+                                    applyForecast(item);
+                                }
+                            } finally {
+                                dataItems.release();
+                            }
+                        }
+                    });
         }
 
         @Override
@@ -446,7 +499,7 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
 
         @Override
         public void onConnectionFailed(ConnectionResult connectionResult) {
-
+            Log.w(TAG, "Couldn't connect to the data layer: " + connectionResult);
         }
 
         @Override
@@ -454,103 +507,227 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
 
             Log.e(TAG, "onDataChanged in watchface: " + dataEvents);
 
-            // Loop through the events and send a message back to the node that created the data item.
             for (DataEvent event : dataEvents) {
-                Uri uri = event.getDataItem().getUri();
-                String path = uri.getPath();
+                String path = event.getDataItem().getUri().getPath();
                 Log.e(TAG,"Path to data = " + path);
                 if (TEMP_PATH.equals(path)) {
-                    // Get the node id of the node that created the data item from the host portion of
-                    // the uri.
-                    String nodeId = uri.getHost();
-                    // Set the data of the message to be the bytes of the Uri.
-                    byte[] payload = uri.toString().getBytes();
-
-                    Log.e(TAG,"Pull datamap");
-                    DataMap dataMap = DataMapItem.fromDataItem(event.getDataItem()).getDataMap();
-                    Log.e(TAG, "High temp = " + dataMap.getString(HIGH_TEMP_KEY));
-                    Log.e(TAG, "Low temp = " + dataMap.getString(LOW_TEMP_KEY));
-
-                    mHighTemp = dataMap.getString(HIGH_TEMP_KEY);
-                    mLowTemp = dataMap.getString(LOW_TEMP_KEY);
-
-                    final Asset photoAsset = dataMap.getAsset(IMAGE_KEY);
-
-                    // Send the rpc
-                    Wearable.MessageApi.sendMessage(mGoogleApiClient, nodeId, DATA_ITEM_RECEIVED_PATH,
-                            payload);
-
-                    new AssetToBitimapAsyncTask(this).execute(photoAsset);
-
+                    applyForecast(event.getDataItem());
                 }
             }
         }
 
-        @Override
-        public void onLoadBitmapFinished(Bitmap bitmap) {
+        /**
+         * Shows the forecast in a /temp data item, unless it's the one already shown.
+         */
+        private void applyForecast(DataItem item) {
+            long receivedAt = SystemClock.elapsedRealtime();
+            // The node that created the data item is the host portion of its uri
+            String nodeId = item.getUri().getHost();
+            DataMap dataMap = DataMapItem.fromDataItem(item).getDataMap();
+            ReceiptQueue.Receipt receipt =
+                    new ReceiptQueue.Receipt(dataMap.getLong(VERSION_KEY, 0), receivedAt);
+            byte[] data = dataMap.getByteArray(FORECAST_KEY);
+            if (data == null) {
+                Log.e(TAG, "No forecast from the phone");
+                addReceipt(nodeId, receipt, ReceiptBatch.STATUS_BAD_FORECAST);
+                return;
+            }
+            final Asset photoAsset = dataMap.getAsset(IMAGE_KEY);
+            String iconDigest = photoAsset != null ? photoAsset.getDigest() : null;
+            // A phone that doesn't send its sync time sends each forecast as it syncs it
+            long syncedAt = dataMap.getLong(SYNCED_AT_KEY, System.currentTimeMillis());
+            if (mWaitingForFirstData) {
+                mWaitingForFirstData = false;
+                Log.d(TAG, "First data " + (SystemClock.elapsedRealtime() - mVisibleAtMs)
+                        + "ms after becoming visible");
+            }
+            if (Arrays.equals(data, mForecastData) && TextUtils.equals(iconDigest, mIconDigest)) {
+                // The phone may be telling us the forecast is still current
+                if (syncedAt > mForecastSyncedAt) {
+                    mForecastSyncedAt = syncedAt;
+                    updateStale();
+                    invalidate();
+                    mStore.save(data, syncedAt, mIconDigest, mDecodedIcon);
+                }
+                addReceipt(nodeId, receipt, ReceiptBatch.STATUS_APPLIED);
+                return;
+            }
 
-            Log.e(TAG, "onLoadBitmapFinished()! invalidate and redraw");
-            if(bitmap != null) {
-                Log.e(TAG, "Bitmap not null! horray!");
+            if (!showForecast(data, syncedAt)) {
+                addReceipt(nodeId, receipt, ReceiptBatch.STATUS_BAD_FORECAST);
+                return;
+            }
 
-                mPhotoImage = bitmap;
+            // The phone's icon is for the first day, which may be over by now
+            if (photoAsset != null && mToday == 0) {
+                if (TextUtils.equals(iconDigest, mIconDigest)) {
+                    mStore.save(data, syncedAt, mIconDigest, mDecodedIcon);
+                    addReceipt(nodeId, receipt, ReceiptBatch.STATUS_APPLIED);
+                    return;
+                }
+                if (!TextUtils.equals(iconDigest, mPendingIconDigest)) {
+                    mPendingIconDigest = iconDigest;
+                    mIconDecoder.decode(photoAsset, this);
+                }
+                // Not applied until the icon is; a superseded decode's receipt is dropped
+                mPendingReceipt = receipt;
+                mPendingReceiptNodeId = nodeId;
+            } else {
+                mIconDecoder.cancel();
+                mIconDigest = null;
+                mPendingIconDigest = null;
+                mPendingReceipt = null;
+                setPhotoImage(getBundledIcon(), false);
+                mStore.save(data, syncedAt, null, null);
+                addReceipt(nodeId, receipt, ReceiptBatch.STATUS_APPLIED);
             }
-            invalidate();
         }
-    }
 
-    /**
-     * Task to change Asset from the phone into a Bitmap
-     */
-    private class AssetToBitimapAsyncTask extends AsyncTask<Asset, Void, Bitmap> {
+        /**
+         * Holds a receipt back, to go to the phone with any others that follow it soon.  An
+         * item pulled again, with a version already receipted, sends nothing.
+         */
+        private void addReceipt(String nodeId, ReceiptQueue.Receipt receipt, int status) {
+            if (mReceipts.isFullFor(nodeId) && sendReceipts() == null) {
+                // Not connected; rather than hold back more than a batch, drop the oldest
+                Log.w(TAG, "Dropping receipts that couldn't be sent");
+                mReceipts.takeBatch();
+            }
+            if (!mReceipts.add(nodeId, receipt, status)) {
+                return;
+            }
+            if (!mUpdateTimeHandler.hasMessages(MSG_SEND_RECEIPTS)) {
+                mUpdateTimeHandler.sendEmptyMessageDelayed(MSG_SEND_RECEIPTS, RECEIPT_DELAY_MS);
+            }
+        }
 
-        private OnLoadBitmapListener listener;
+        /**
+         * Sends the receipts held back to the phone, in one message.  If we're not connected
+         * they're kept until we are.
+         *
+         * @return the pending send, or null if nothing was sent.
+         */
+        private PendingResult<MessageApi.SendMessageResult> sendReceipts() {
+            mUpdateTimeHandler.removeMessages(MSG_SEND_RECEIPTS);
+            if (mReceipts.isEmpty() || !mGoogleApiClient.isConnected()) {
+                return null;
+            }
+            String nodeId = mReceipts.getNodeId();
+            return Wearable.MessageApi.sendMessage(mGoogleApiClient, nodeId,
+                    DATA_ITEM_RECEIVED_PATH, mReceipts.takeBatch());
+        }
 
-        public AssetToBitimapAsyncTask(OnLoadBitmapListener listener) {
-            this.listener = listener;
+        /**
+         * Shows today's high and low from an encoded forecast.
+         *
+         * @param syncedAt when the phone last synced the forecast.
+         * @return false if the forecast couldn't be decoded.
+         */
+        private boolean showForecast(byte[] data, long syncedAt) {
+            ForecastPayload forecast;
+            try {
+                forecast = ForecastPayload.decode(data);
+            } catch (IOException e) {
+                Log.e(TAG, "Bad forecast from the phone", e);
+                return false;
+            }
+            mForecast = forecast;
+            mForecastData = data;
+            mForecastSyncedAt = syncedAt;
+            showToday();
+            Log.e(TAG, "High temp = " + mHighTemp + ", Low temp = " + mLowTemp);
+            return true;
         }
-        @Override
-        protected Bitmap doInBackground(Asset... params) {
 
-            if(params.length > 0) {
+        /**
+         * Shows the high and low of the forecast's day that it is now.
+         */
+        private void showToday() {
+            mToday = Math.max(mForecast.indexOfDay(System.currentTimeMillis()), 0);
+            if (mToday < mForecast.size()) {
+                mHighTemp = formatTemperature(mForecast.getMaxTemp(mToday),
+                        mForecast.isMetric());
+                mLowTemp = formatTemperature(mForecast.getMinTemp(mToday),
+                        mForecast.isMetric());
+            }
+            mRenderer.setTemperatures(mHighTemp, mLowTemp);
+            updateStale();
+            invalidate();
+        }
 
-                Asset asset = params[0];
+        /**
+         * Shows the next day of the forecast, and its icon, once it's started.  The phone sends
+         * every day it has so the face can do this itself.
+         */
+        private void updateToday() {
+            if (mForecast == null
+                    || Math.max(mForecast.indexOfDay(System.currentTimeMillis()), 0) == mToday) {
+                return;
+            }
+            showToday();
+            // The phone's icon is for the first day; after that the bundled art has to do
+            if (mIconDigest == null || mToday > 0) {
+                mIconDigest = null;
+                setPhotoImage(getBundledIcon(), false);
+            }
+        }
 
-                InputStream assetInputStream = Wearable.DataApi.getFdForAsset(
-                        mGoogleApiClient, asset).await().getInputStream();
+        /**
+         * @return the bundled icon for today's weather, or null if there's none.
+         */
+        private Bitmap getBundledIcon() {
+            return mToday < mForecast.size()
+                    ? mWeatherIcons.getIcon(mForecast.getWeatherId(mToday)) : null;
+        }
 
-                if (assetInputStream == null) {
-                    Log.w(TAG, "Requested an unknown Asset.");
-                    return null;
-                }
-                return BitmapFactory.decodeStream(assetInputStream);
+        /**
+         * Shows the forecast as stale if it's old or doesn't cover today.
+         */
+        private void updateStale() {
+            if (mForecast == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            mRenderer.setStale(now - mForecastSyncedAt > STALE_MS
+                    || mForecast.indexOfDay(now) == -1);
+        }
 
-            } else {
-                Log.e(TAG, "Asset must be non-null");
-                return null;
+        /**
+         * Formats a temperature from the phone, which sends them in Celsius, in the user's units.
+         */
+        private String formatTemperature(double temperature, boolean metric) {
+            if (!metric) {
+                temperature = (temperature * 1.8) + 32;
             }
+            // For presentation, assume the user doesn't care about tenths of a degree.
+            return String.format(getString(R.string.format_temperature), temperature);
         }
 
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-
-            if(bitmap != null) {
-                Log.e(TAG, "Created Bitmap!..");
-
-
-                listener.onLoadBitmapFinished(bitmap);
-                //redraw watch face
-              //  SunshineWatchFaceService.Engine.this.invalidate();
+        public void onIconDecoded(Bitmap icon) {
+            if (icon != null) {
+                mIconDigest = mPendingIconDigest;
+                setPhotoImage(icon, true);
+                mStore.save(mForecastData, mForecastSyncedAt, mIconDigest, icon);
+            }
+            mPendingIconDigest = null;
+            if (mPendingReceipt != null) {
+                addReceipt(mPendingReceiptNodeId, mPendingReceipt, icon != null
+                        ? ReceiptBatch.STATUS_APPLIED : ReceiptBatch.STATUS_BAD_ICON);
+                mPendingReceipt = null;
             }
         }
 
-    }
-
-    /**
-     * Interface used to call back from AsyncTask to let the outer class know the Bitmap is done
-     */
-    interface OnLoadBitmapListener {
-
-        void onLoadBitmapFinished(Bitmap bitmap);
+        /**
+         * Shows the icon, giving the last one the phone sent back to the decoder.
+         */
+        private void setPhotoImage(Bitmap icon, boolean decoded) {
+            mRenderer.setPhotoImage(icon);
+            if (mDecodedIcon != null && mDecodedIcon != icon) {
+                mIconDecoder.recycle(mDecodedIcon);
+            }
+            mDecodedIcon = decoded ? icon : null;
+            invalidate();
+        }
     }
 }
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.text.format.Time;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Draws the Sunshine watch face.  Everything a frame needs is made ahead of time, so
+ * {@link #draw} doesn't allocate: the time is written into a reused char array and the date is
+ * only formatted again when the day or the time zone changes.
+ * <p>
+ * Only the time changes from minute to minute, so everything else (the background, date, line,
+ * temperatures and icon) is drawn into a static layer, which is only drawn again when one of
+ * them changes.  A frame is then the layer plus the time.
+ * <p>
+ * Ambient mode has its own path.  It draws straight onto black, without the layer, background
+ * or divider, and uses a copy of the icon made when the icon arrives: gray, or just its outline
+ * on screens that need burn-in protection or only have a few bits for each color.  With burn-in
+ * protection, the whole ambient face shifts by a few pixels each minute.
+ */
+public class WatchFaceRenderer {
+    private static final Typeface NORMAL_TYPEFACE =
+            Typeface.create(Typeface.SANS_SERIF, Typeface.NORMAL);
+
+    private final Resources mResources;
+
+    private final Paint mBackgroundPaint;
+    private final Paint mTextPaint;
+    private final Paint mDateTextPaint;
+    private final Paint mLinePaint;
+    private final Paint mTempPaint;
+
+    // "HH:MM", rewritten in place each frame
+    private final char[] mTimeChars = {'0', '0', ':', '0', '0'};
+
+    // The date, formatted once a day
+    private SimpleDateFormat mDateFormat;
+    private final Date mDate = new Date();
+    private String mDateText = "";
+    private int mDateYear = -1;
+    private int mDateYearDay = -1;
+
+    private float mXOffset;
+    private float mYOffset;
+
+    //Date offsets
+    private float mDateXOffset;
+    private float mDateYOffset;
+
+    //Line Offsets
+    private float mLineY;
+
+    private float mTempYOffset;
+    private float mHighTempXOffset;
+    private float mLowTempXOffset;
+
+    //Today's forecast, in gray when it's stale
+    private String mHighTemp = "";
+    private String mLowTemp = "";
+    private boolean mStale;
+    private Bitmap mPhotoImage;
+    private float mPhotoXOffset;
+    private float mPhotoYOffset;
+
+    private boolean mAmbient;
+    private boolean mLowBitAmbient;
+    private boolean mBurnInProtection;
+    private int mTapCount;
+
+    // The icon for ambient mode, made from mPhotoImage when it's set
+    private Bitmap mAmbientPhotoImage;
+    // The most the ambient face moves from where it's drawn interactively
+    private final int mAmbientShift;
+
+    // Everything but the time, drawn again only when it's invalid
+    private Bitmap mStaticLayer;
+    private Canvas mStaticCanvas;
+    private boolean mStaticLayerValid;
+
+    // Frame timings, since the last reset
+    private int mFrameCount;
+    private long mFrameNanos;
+    private long mMaxFrameNanos;
+    private int mLayerBuildCount;
+    private long mLayerBuildNanos;
+
+    public WatchFaceRenderer(Resources resources) {
+        mResources = resources;
+
+        //Get offsets from dimensions
+        mYOffset = resources.getDimension(R.dimen.digital_y_offset);
+        mDateYOffset = resources.getDimension(R.dimen.date_y_offset);
+        mTempYOffset = resources.getDimension(R.dimen.temp_y_offset);
+        mLineY = resources.getDimension(R.dimen.line_y);
+        mAmbientShift = resources.getDimensionPixelSize(R.dimen.ambient_shift);
+
+        mBackgroundPaint = new Paint();
+        mBackgroundPaint.setColor(resources.getColor(R.color.background));
+
+        mTextPaint = createTextPaint(resources.getColor(R.color.digital_text));
+
+        //Create paint for date
+        mDateTextPaint = createTextPaint(resources.getColor(R.color.digital_text_grey));
+
+        //Create paint for divider line
+        mLinePaint = new Paint();
+        mLinePaint.setColor(resources.getColor(R.color.divider_line));
+        mLinePaint.setStrokeWidth(1f);
+        mLinePaint.setStyle(Paint.Style.STROKE);
+
+        //Create high/low temperature paint
+        mTempPaint = createTextPaint(resources.getColor(R.color.digital_text));
+
+        setTimeZone(TimeZone.getDefault());
+    }
+
+    private static Paint createTextPaint(int textColor) {
+        Paint paint = new Paint();
+        paint.setColor(textColor);
+        paint.setTypeface(NORMAL_TYPEFACE);
+        paint.setAntiAlias(true);
+        return paint;
+    }
+
+    /**
+     * Loads the sizes and offsets, which differ between round and square watches.
+     */
+    public void applyWindowInsets(boolean isRound) {
+        Resources resources = mResources;
+        mXOffset = resources.getDimension(isRound
+                ? R.dimen.digital_x_offset_round : R.dimen.digital_x_offset);
+        mTextPaint.setTextSize(resources.getDimension(isRound
+                ? R.dimen.digital_text_size_round : R.dimen.digital_text_size));
+
+        //Set Date offsets
+        mDateXOffset = resources.getDimension(isRound
+                ? R.dimen.date_x_offset_round : R.dimen.date_x_offset);
+        mDateTextPaint.setTextSize(resources.getDimension(isRound
+                ? R.dimen.date_text_size_round : R.dimen.date_text_size));
+
+        //Set Temperature offsets
+        mHighTempXOffset = resources.getDimension(isRound
+                ? R.dimen.high_temp_x_offset_round : R.dimen.high_temp_x_offset);
+        mLowTempXOffset = resources.getDimension(isRound
+                ? R.dimen.low_temp_x_offset_round : R.dimen.low_temp_x_offset);
+        mTempPaint.setTextSize(resources.getDimension(isRound
+                ? R.dimen.temp_text_size_round : R.dimen.temp_text_size));
+
+        //Set Photo offsets
+        mPhotoXOffset = resources.getDimension(isRound
+                ? R.dimen.icon_x_offset_round : R.dimen.icon_x_offset);
+        mPhotoYOffset = resources.getDimension(isRound
+                ? R.dimen.icon_y_offset_round : R.dimen.icon_y_offset);
+        mStaticLayerValid = false;
+    }
+
+    /**
+     * Formats the date in the new zone from the next frame on.
+     */
+    public void setTimeZone(TimeZone timeZone) {
+        mDateFormat = new SimpleDateFormat("MMM d, yyyy", Locale.getDefault());
+        mDateFormat.setTimeZone(timeZone);
+        mDateYear = -1;
+        mDateYearDay = -1;
+        mStaticLayerValid = false;
+    }
+
+    /**
+     * Sets what the screen needs in ambient mode: whether it has only a few bits for each color,
+     * and whether it needs protection from burn-in.
+     */
+    public void setAmbientProperties(boolean lowBitAmbient, boolean burnInProtection) {
+        if (lowBitAmbient == mLowBitAmbient && burnInProtection == mBurnInProtection) {
+            return;
+        }
+        mLowBitAmbient = lowBitAmbient;
+        mBurnInProtection = burnInProtection;
+        updateAntiAlias();
+        makeAmbientPhotoImage();
+    }
+
+    public void setAmbient(boolean ambient) {
+        mAmbient = ambient;
+        updateAntiAlias();
+    }
+
+    private void updateAntiAlias() {
+        boolean antiAlias = !(mAmbient && mLowBitAmbient);
+        mTextPaint.setAntiAlias(antiAlias);
+        mDateTextPaint.setAntiAlias(antiAlias);
+        mTempPaint.setAntiAlias(antiAlias);
+    }
+
+    /**
+     * Switches between the two background colors.
+     */
+    public void toggleBackground() {
+        mTapCount++;
+        mBackgroundPaint.setColor(mResources.getColor(mTapCount % 2 == 0 ?
+                R.color.background : R.color.background2));
+        mStaticLayerValid = false;
+    }
+
+    /**
+     * Sets today's high and low, already formatted.
+     */
+    public void setTemperatures(String highTemp, String lowTemp) {
+        mHighTemp = highTemp;
+        mLowTemp = lowTemp;
+        mStaticLayerValid = false;
+    }
+
+    /**
+     * Marks the forecast as old, or as current again.
+     */
+    public void setStale(boolean stale) {
+        if (stale == mStale) {
+            return;
+        }
+        mStale = stale;
+        mTempPaint.setColor(mResources.getColor(stale ?
+                R.color.digital_text_grey : R.color.digital_text));
+        mStaticLayerValid = false;
+    }
+
+    public void setPhotoImage(Bitmap photoImage) {
+        mPhotoImage = photoImage;
+        mStaticLayerValid = false;
+        makeAmbientPhotoImage();
+    }
+
+    /**
+     * Makes the ambient icon from the icon, once, so ambient frames only draw it.
+     */
+    private void makeAmbientPhotoImage() {
+        if (mAmbientPhotoImage != null) {
+            mAmbientPhotoImage.recycle();
+            mAmbientPhotoImage = null;
+        }
+        if (mPhotoImage == null) {
+            return;
+        }
+        if (mLowBitAmbient || mBurnInProtection) {
+            mAmbientPhotoImage = createOutline(mPhotoImage);
+        } else {
+            mAmbientPhotoImage = createGray(mPhotoImage);
+        }
+    }
+
+    /**
+     * Frees the static layer.  It's made again by the next frame.
+     */
+    public void release() {
+        if (mAmbientPhotoImage != null) {
+            mAmbientPhotoImage.recycle();
+            mAmbientPhotoImage = null;
+        }
+        if (mStaticLayer != null) {
+            mStaticLayer.recycle();
+            mStaticLayer = null;
+            mStaticCanvas = null;
+        }
+        mStaticLayerValid = false;
+    }
+
+    public void draw(Canvas canvas, Rect bounds, Time time) {
+        long start = System.nanoTime();
+
+        if (time.yearDay != mDateYearDay || time.year != mDateYear) {
+            updateDate(time);
+        }
+        setTimeChars(time.hour, time.minute);
+        if (mAmbient) {
+            drawAmbient(canvas, time);
+        } else {
+            drawInteractive(canvas, bounds);
+        }
+
+        long nanos = System.nanoTime() - start;
+        mFrameCount++;
+        mFrameNanos += nanos;
+        if (nanos > mMaxFrameNanos) {
+            mMaxFrameNanos = nanos;
+        }
+    }
+
+    private void drawInteractive(Canvas canvas, Rect bounds) {
+        if (!mStaticLayerValid || mStaticLayer == null
+                || mStaticLayer.getWidth() != bounds.width()
+                || mStaticLayer.getHeight() != bounds.height()) {
+            buildStaticLayer(bounds);
+        }
+        canvas.drawBitmap(mStaticLayer, 0, 0, null);
+
+        // Draw HH:MM
+        canvas.drawText(mTimeChars, 0, mTimeChars.length, mXOffset, mYOffset, mTextPaint);
+    }
+
+    /**
+     * Draws only the time, date, temperatures and ambient icon, on black.
+     */
+    private void drawAmbient(Canvas canvas, Time time) {
+        float dx = 0;
+        float dy = 0;
+        if (mBurnInProtection) {
+            // Walk a small square, one step a minute, so no pixel stays lit for long
+            int span = 2 * mAmbientShift + 1;
+            int step = time.minute % (span * span);
+            dx = step % span - mAmbientShift;
+            dy = step / span - mAmbientShift;
+        }
+
+        canvas.drawColor(Color.BLACK);
+        canvas.drawText(mTimeChars, 0, mTimeChars.length, mXOffset + dx, mYOffset + dy,
+                mTextPaint);
+        canvas.drawText(mDateText, mDateXOffset + dx, mDateYOffset + dy, mDateTextPaint);
+        canvas.drawText(mHighTemp, mHighTempXOffset + dx, mTempYOffset + dy, mTempPaint);
+        canvas.drawText(mLowTemp, mLowTempXOffset + dx, mTempYOffset + dy, mTempPaint);
+        if (mAmbientPhotoImage != null) {
+            canvas.drawBitmap(mAmbientPhotoImage, mPhotoXOffset + dx, mPhotoYOffset + dy, null);
+        }
+    }
+
+    private void buildStaticLayer(Rect bounds) {
+        long start = System.nanoTime();
+        int width = bounds.width();
+        int height = bounds.height();
+        if (mStaticLayer == null
+                || mStaticLayer.getWidth() != width || mStaticLayer.getHeight() != height) {
+            if (mStaticLayer != null) {
+                mStaticLayer.recycle();
+            }
+            mStaticLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mStaticCanvas = new Canvas(mStaticLayer);
+        }
+        Canvas canvas = mStaticCanvas;
+
+        // Draw the background.
+        canvas.drawRect(0, 0, width, height, mBackgroundPaint);
+
+        canvas.drawText(mDateText, mDateXOffset, mDateYOffset, mDateTextPaint);
+
+        float centerX = width / 2f;
+        canvas.drawLine(centerX - 30, mLineY, centerX + 30, mLineY, mLinePaint);
+
+        canvas.drawText(mHighTemp, mHighTempXOffset, mTempYOffset, mTempPaint);
+        canvas.drawText(mLowTemp, mLowTempXOffset, mTempYOffset, mTempPaint);
+
+        if (mPhotoImage != null) {
+            canvas.drawBitmap(mPhotoImage, mPhotoXOffset, mPhotoYOffset, null);
+        }
+
+        mStaticLayerValid = true;
+        mLayerBuildCount++;
+        mLayerBuildNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return a gray copy of the icon.
+     */
+    static Bitmap createGray(Bitmap icon) {
+        Bitmap gray = Bitmap.createBitmap(icon.getWidth(), icon.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        ColorMatrix matrix = new ColorMatrix();
+        matrix.setSaturation(0);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        paint.setColorFilter(new ColorMatrixColorFilter(matrix));
+        new Canvas(gray).drawBitmap(icon, 0, 0, paint);
+        return gray;
+    }
+
+    /**
+     * @return the icon's outline in white: its opaque pixels that are next to a transparent
+     * one or the edge.
+     */
+    static Bitmap createOutline(Bitmap icon) {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        int[] pixels = new int[width * height];
+        icon.getPixels(pixels, 0, width, 0, 0, width, height);
+        int[] outline = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (isOpaque(pixels[i])
+                        && (x == 0 || !isOpaque(pixels[i - 1])
+                        || x == width - 1 || !isOpaque(pixels[i + 1])
+                        || y == 0 || !isOpaque(pixels[i - width])
+                        || y == height - 1 || !isOpaque(pixels[i + width]))) {
+                    outline[i] = Color.WHITE;
+                }
+            }
+        }
+        return Bitmap.createBitmap(outline, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static boolean isOpaque(int pixel) {
+        return Color.alpha(pixel) >= 0x80;
+    }
+
+    private void setTimeChars(int hour, int minute) {
+        mTimeChars[0] = (char) ('0' + hour / 10);
+        mTimeChars[1] = (char) ('0' + hour % 10);
+        mTimeChars[3] = (char) ('0' + minute / 10);
+        mTimeChars[4] = (char) ('0' + minute % 10);
+    }
+
+    private void updateDate(Time time) {
+        mDate.setTime(time.toMillis(false));
+        mDateText = mDateFormat.format(mDate);
+        mDateYear = time.year;
+        mDateYearDay = time.yearDay;
+        mStaticLayerValid = false;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the mean time to draw a frame, including any static layer it built.
+     */
+    public long getMeanFrameNanos() {
+        return mFrameCount == 0 ? 0 : mFrameNanos / mFrameCount;
+    }
+
+    public long getMaxFrameNanos() {
+        return mMaxFrameNanos;
+    }
+
+    public int getLayerBuildCount() {
+        return mLayerBuildCount;
+    }
+
+    public long getMeanLayerBuildNanos() {
+        return mLayerBuildCount == 0 ? 0 : mLayerBuildNanos / mLayerBuildCount;
+    }
+
+    public void resetFrameStats() {
+        mFrameCount = 0;
+        mFrameNanos = 0;
+        mMaxFrameNanos = 0;
+        mLayerBuildCount = 0;
+        mLayerBuildNanos = 0;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The last forecast from the phone, kept in a small file so the face can show it as soon as it
+ * starts, before the data layer has connected.
+ * <p>
+ * The file holds the forecast as the phone sent it, and the phone's icon, if it sent one, as
+ * the pixels of the decoded icon.  The icon is only a few kilobytes at the size the face draws
+ * it, and this way loading it is a copy rather than a decode.  Loading is meant for the main
+ * thread; saving happens on the store's own thread.
+ * <p>
+ * It also keeps, in a file of its own, the version of the last of the phone's items the face
+ * sent a receipt for, so a restarted face doesn't receipt the same item again.
+ */
+public class WatchForecastStore {
+    private static final String LOG_TAG = WatchForecastStore.class.getSimpleName();
+
+    static final String FILE_NAME = "watch_forecast";
+    static final String RECEIPTS_FILE_NAME = "watch_receipts";
+
+    // Bump this whenever the file layout changes; files in an older format are ignored
+    private static final int FORMAT = 2;
+
+    /**
+     * A forecast as it was saved.
+     */
+    public static class Entry {
+        // When the phone last synced the forecast, by its clock
+        public final long syncedAt;
+        public final byte[] forecast;
+        // The digest of the phone's icon, or null if the bundled art is used
+        public final String iconDigest;
+        public final Bitmap icon;
+
+        Entry(long syncedAt, byte[] forecast, String iconDigest, Bitmap icon) {
+            this.syncedAt = syncedAt;
+            this.forecast = forecast;
+            this.iconDigest = iconDigest;
+            this.icon = icon;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final AtomicFile mReceiptsFile;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    public WatchForecastStore(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+        mReceiptsFile = new AtomicFile(new File(dir, RECEIPTS_FILE_NAME));
+    }
+
+    /**
+     * Reads the saved forecast.
+     *
+     * @return the forecast, or null if none was saved or it can't be read.
+     */
+    public Entry load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            return readFrom(in);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading the saved forecast", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the forecast in the background.  The icon's pixels are copied before this returns,
+     * so it may be recycled afterwards.
+     *
+     * @param syncedAt when the phone last synced the forecast.
+     * @param icon the phone's icon, or null if the bundled art is used.
+     */
+    public void save(byte[] forecast, final long syncedAt, String iconDigest, Bitmap icon) {
+        final byte[] data = forecast;
+        final String digest = iconDigest;
+        final int width = icon != null ? icon.getWidth() : 0;
+        final int height = icon != null ? icon.getHeight() : 0;
+        final byte[] pixels;
+        if (icon != null && icon.getConfig() == Bitmap.Config.ARGB_8888) {
+            pixels = new byte[width * height * 4];
+            icon.copyPixelsToBuffer(ByteBuffer.wrap(pixels));
+        } else {
+            pixels = null;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream stream = null;
+                try {
+                    stream = mFile.startWrite();
+                    DataOutputStream out =
+                            new DataOutputStream(new BufferedOutputStream(stream));
+                    out.writeInt(FORMAT);
+                    out.writeLong(syncedAt);
+                    out.writeInt(data.length);
+                    out.write(data);
+                    out.writeUTF(digest != null && pixels != null ? digest : "");
+                    if (pixels != null) {
+                        out.writeInt(width);
+                        out.writeInt(height);
+                        out.write(pixels);
+                    }
+                    out.flush();
+                    mFile.finishWrite(stream);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error saving the forecast", e);
+                    mFile.failWrite(stream);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the version of the last item a receipt was sent for.
+     *
+     * @return the version, or 0 if none was saved or it can't be read.
+     */
+    public long loadReceiptedVersion() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mReceiptsFile.openRead()));
+            return in.readInt() == FORMAT ? in.readLong() : 0;
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading the receipted version", e);
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the version of the last item a receipt was sent for, in the background.
+     */
+    public void saveReceiptedVersion(final long version) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream stream = null;
+                try {
+                    stream = mReceiptsFile.startWrite();
+                    DataOutputStream out = new DataOutputStream(stream);
+                    out.writeInt(FORMAT);
+                    out.writeLong(version);
+                    out.flush();
+                    mReceiptsFile.finishWrite(stream);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error saving the receipted version", e);
+                    mReceiptsFile.failWrite(stream);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for saves already started to finish.  For tests.
+     */
+    void flush() throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    public void shutdown() {
+        // Let a pending save finish
+        mExecutor.shutdown();
+    }
+
+    private static Entry readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FORMAT) {
+            return null;
+        }
+        long syncedAt = in.readLong();
+        byte[] forecast = readBytes(in, in.readInt());
+        String iconDigest = in.readUTF();
+        if (iconDigest.isEmpty()) {
+            return new Entry(syncedAt, forecast, null, null);
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        if (width <= 0 || height <= 0 || width > 1024 || height > 1024) {
+            throw new IOException("Bad saved icon size " + width + "x" + height);
+        }
+        byte[] pixels = readBytes(in, width * height * 4);
+        Bitmap icon = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        icon.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+        // Like the decoded icon it was saved from, it's drawn pixel for pixel
+        icon.setDensity(Bitmap.DENSITY_NONE);
+        return new Entry(syncedAt, forecast, iconDigest, icon);
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Bad saved length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.SparseArray;
+
+/**
+ * The Sunshine art, bundled with the watch face at its own size, so the phone only has to send
+ * a weather id.  Each icon is decoded the first time it's needed and kept.
+ */
+public class WeatherIcons {
+    private final Resources mResources;
+    private final SparseArray<Bitmap> mIcons = new SparseArray<>();
+
+    public WeatherIcons(Resources resources) {
+        mResources = resources;
+    }
+
+    /**
+     * @return the icon for the weather, or null if there's none for the id.
+     */
+    public Bitmap getIcon(int weatherId) {
+        int resourceId = getArtResourceForWeatherCondition(weatherId);
+        if (resourceId == -1) {
+            return null;
+        }
+        Bitmap icon = mIcons.get(resourceId);
+        if (icon == null) {
+            icon = BitmapFactory.decodeResource(mResources, resourceId);
+            mIcons.put(resourceId, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Helper method to provide the art resource id according to the weather condition id
+     * returned by the OpenWeatherMap call.  The same table as the phone app's.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return resource id for the corresponding icon. -1 if no relation is found.
+     */
+    public static int getArtResourceForWeatherCondition(int weatherId) {
+        // Based on weather code data found at:
+        // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
+        if (weatherId >= 200 && weatherId <= 232) {
+            return R.drawable.art_storm;
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            return R.drawable.art_light_rain;
+        } else if (weatherId >= 500 && weatherId <= 504) {
+            return R.drawable.art_rain;
+        } else if (weatherId == 511) {
+            return R.drawable.art_snow;
+        } else if (weatherId >= 520 && weatherId <= 531) {
+            return R.drawable.art_rain;
+        } else if (weatherId >= 600 && weatherId <= 622) {
+            return R.drawable.art_snow;
+        } else if (weatherId >= 701 && weatherId <= 761) {
+            return R.drawable.art_fog;
+        } else if (weatherId == 761 || weatherId == 781) {
+            return R.drawable.art_storm;
+        } else if (weatherId == 800) {
+            return R.drawable.art_clear;
+        } else if (weatherId == 801) {
+            return R.drawable.art_light_clouds;
+        } else if (weatherId >= 802 && weatherId <= 804) {
+            return R.drawable.art_clouds;
+        }
+        return -1;
+    }
+}